@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.common;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Calendar days represented as number of days since 1970-01-01 (so they can be stored in primitive arrays).
+ * Conversion from and to {@link Date} uses midnight in the default time zone, i.e. the same instant as
+ * a date parsed by <code>SimpleDateFormat("yyyy-MM-dd")</code>.
+ */
+public final class EpochDays {
+
+    /**
+     * Returned by {@link #parseIso(char[], int, int)} for text it does not accept.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    /**
+     * {@link GregorianCalendar} uses Julian calendar for older dates, these are left to the general purpose date format.
+     */
+    private static final int GREGORIAN_START_YEAR = 1583;
+
+    private EpochDays() {
+    }
+
+    /**
+     * Parses date in strict <code>yyyy-MM-dd</code> format without any locking or allocation.
+     *
+     * @return epoch day or {@link #INVALID} if the text is not a valid date in exactly this format
+     *         (callers may fall back to general purpose date format then)
+     */
+    public static long parseIso(@NotNull char[] text, int start, int end) {
+        if (end - start != 10 || text[start + 4] != '-' || text[start + 7] != '-') {
+            return INVALID;
+        }
+        int year = digits(text, start, 4);
+        int month = digits(text, start + 5, 2);
+        int day = digits(text, start + 8, 2);
+        if (year < GREGORIAN_START_YEAR || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)) {
+            return INVALID;
+        }
+        return of(year, month, day);
+    }
+
+    private static int digits(@NotNull char[] text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = text[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+        case 2:
+            boolean leap = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        case 4:
+        case 6:
+        case 9:
+        case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    /**
+     * @param month 1-based month
+     */
+    public static long of(int year, int month, int day) {
+        long y = (month <= 2) ? year - 1 : year;
+        long era = ((y >= 0) ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    public static int year(long epochDay) {
+        return (int) (civil(epochDay) >> 9);
+    }
+
+    /**
+     * @return 1-based month
+     */
+    public static int month(long epochDay) {
+        return (int) ((civil(epochDay) >> 5) & 0xF);
+    }
+
+    public static int dayOfMonth(long epochDay) {
+        return (int) (civil(epochDay) & 0x1F);
+    }
+
+    /**
+     * Year, month and day packed as <code>year &lt;&lt; 9 | month &lt;&lt; 5 | day</code>.
+     */
+    private static long civil(long epochDay) {
+        long z = epochDay + 719468;
+        long era = ((z >= 0) ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        long month = (mp < 10) ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + ((month <= 2) ? 1 : 0);
+        return (year << 9) | (month << 5) | day;
+    }
+
+    /**
+     * Day containing given instant (in the default time zone).
+     */
+    public static long fromDate(@NotNull Date date) {
+        Calendar cal = new GregorianCalendar();
+        cal.setTime(date);
+        return of(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1, cal.get(Calendar.DAY_OF_MONTH));
+    }
+
+    /**
+     * Start of given day in the default time zone.
+     */
+    public static @NotNull Date toDate(long epochDay) {
+        Calendar cal = new GregorianCalendar();
+        cal.clear();
+        cal.set(year(epochDay), month(epochDay) - 1, dayOfMonth(epochDay));
+        return cal.getTime();
+    }
+
+    /**
+     * First day whose start is not before given instant.
+     */
+    public static long firstDayNotBefore(@NotNull Date date) {
+        long epochDay = fromDate(date);
+        return (toDate(epochDay).getTime() < date.getTime()) ? epochDay + 1 : epochDay;
+    }
+
+    /**
+     * Last day whose start is not after given instant.
+     */
+    public static long lastDayNotAfter(@NotNull Date date) {
+        return fromDate(date);
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Text with <code>${name}</code> placeholders parsed once into literal and placeholder segments.
+ * A placeholder ends with the first <code>}</code> on the same line.
+ */
+@SuppressWarnings("nls")
+public final class TextTemplate {
+
+    /**
+     * Compiled templates are shared, the cache is dropped when it grows too much (e.g. by frequently edited texts).
+     */
+    private static final int MAX_CACHED_TEMPLATES = 1000;
+    private static final ConcurrentMap<String, TextTemplate> cache = new ConcurrentHashMap<>();
+
+    public interface Resolver {
+        /**
+         * @return value of given placeholder or <code>null</code> if it is unknown
+         */
+        @Nullable
+        String resolve(@NotNull String name);
+    }
+
+    /**
+     * Literal segments, there is always one more literal than placeholders (possibly empty).
+     */
+    private final @NotNull String[] literals;
+    private final @NotNull String[] names;
+    /**
+     * Index of the first occurrence of the same placeholder for every placeholder.
+     */
+    private final @NotNull int[] firstOccurrences;
+
+    private TextTemplate(@NotNull List<String> literals, @NotNull List<String> names) {
+        this.literals = literals.toArray(new String[0]);
+        this.names = names.toArray(new String[0]);
+        firstOccurrences = new int[this.names.length];
+        Map<String, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < this.names.length; i++) {
+            Integer first = indexes.get(this.names[i]);
+            if (first == null) {
+                first = i;
+                indexes.put(this.names[i], first);
+            }
+            firstOccurrences[i] = first;
+        }
+    }
+
+    public static @NotNull TextTemplate compile(@NotNull String text) {
+        TextTemplate template = cache.get(text);
+        if (template == null) {
+            template = parse(text);
+            if (cache.size() >= MAX_CACHED_TEMPLATES) {
+                cache.clear();
+            }
+            cache.put(text, template);
+        }
+        return template;
+    }
+
+    private static @NotNull TextTemplate parse(@NotNull String text) {
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        int literalStart = 0;
+        int pos = text.indexOf("${");
+        while (pos >= 0) {
+            int end = findEnd(text, pos + 2);
+            if (end < 0) {
+                pos = text.indexOf("${", pos + 1);
+                continue;
+            }
+            literals.add(text.substring(literalStart, pos));
+            names.add(text.substring(pos + 2, end));
+            literalStart = end + 1;
+            pos = text.indexOf("${", literalStart);
+        }
+        literals.add(text.substring(literalStart));
+        return new TextTemplate(literals, names);
+    }
+
+    private static int findEnd(@NotNull String text, int from) {
+        for (int i = from; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '}') {
+                return i;
+            }
+            if (c == '\n' || c == '\r') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Every distinct placeholder is resolved just once.
+     *
+     * @param defaultValue used for placeholders unknown to the resolver
+     */
+    public @NotNull String render(@NotNull Resolver resolver, @NotNull String defaultValue) {
+        if (names.length == 0) {
+            return literals[0];
+        }
+        String[] values = new String[names.length];
+        StringBuilder result = new StringBuilder(literals[0]);
+        for (int i = 0; i < names.length; i++) {
+            String value = values[firstOccurrences[i]];
+            if (value == null) {
+                value = resolver.resolve(names[i]);
+                if (value == null) {
+                    value = defaultValue;
+                }
+            }
+            values[i] = value;
+            result.append(value).append(literals[i + 1]);
+        }
+        return result.toString();
+    }
+
+}
@@ -16,6 +16,9 @@
 package com.polarion.alm.extensions.widgets.common;
 
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -34,6 +37,7 @@ import com.polarion.platform.core.PlatformContext;
 import com.polarion.platform.persistence.IDataService;
 import com.polarion.platform.service.repository.IRepositoryReadOnlyConnection;
 import com.polarion.platform.service.repository.IRepositoryService;
+import com.polarion.platform.service.repository.IResourceProperties;
 import com.polarion.subterra.base.location.ILocation;
 import com.polarion.subterra.base.location.Location;
 
@@ -98,10 +102,26 @@ public class Utils {
 
     }
 
+    public static final class InvalidParameterException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidParameterException(RichPageParameter parameter, String value) {
+            super("Parameter '" + parameter.label() + "' has invalid value '" + value + "'");
+        }
+
+    }
+
     static IWorkingCalendar getWorkingCalendar() {
         return PlatformContext.getPlatform().lookupService(ITrackerService.class).getPlanningManager().getDefaultWorkingCalendar();
     }
 
+    /**
+     * @return value which changes when the default working calendar may have changed
+     */
+    public static long getWorkingCalendarVersion() {
+        return WorkingDaysCache.INSTANCE.getVersion();
+    }
+
     public static final class Dates {
         public final @NotNull Date from;
         public final @NotNull Date to;
@@ -112,7 +132,7 @@ public class Utils {
         }
 
         public int calculateWorkingDaysBetween() {
-            return getWorkingCalendar().numberOfWorkingDays(from, to);
+            return WorkingDaysCache.INSTANCE.numberOfWorkingDays(from, to);
         }
 
         @Override
@@ -132,21 +152,82 @@ public class Utils {
         public final @NotNull Date timestamp;
     }
 
+    public static final class ResourceInfo {
+        public ResourceInfo(@NotNull String dataLocation, @Nullable String baseline, @Nullable String revision, @NotNull Date timestamp) {
+            super();
+            this.dataLocation = dataLocation;
+            this.baseline = baseline;
+            this.revision = revision;
+            this.timestamp = timestamp;
+        }
+
+        public final @NotNull String dataLocation;
+        public final @Nullable String baseline;
+        public final @Nullable String revision;
+        public final @NotNull Date timestamp;
+    }
+
+    /**
+     * Reads only the resource properties (revision and last modification time), the content is not fetched.
+     */
+    public static @NotNull ResourceInfo getResourceInfo(@NotNull String dataLocation) {
+        return getResourceInfo(dataLocation, getCurrentBaseline());
+    }
+
+    /**
+     * Same as {@link #getResourceInfo(String)} for explicitly given baseline (the current baseline is bound to the calling thread).
+     */
+    public static @NotNull ResourceInfo getResourceInfo(@NotNull String dataLocation, @Nullable String baseline) {
+        ILocation loc = Location.getLocation(IRepositoryService.DEFAULT, dataLocation, baseline);
+        IResourceProperties properties = getConnection(loc).getResourceProperties(loc);
+        return new ResourceInfo(dataLocation, baseline, properties.getRevision(), properties.getLastChangedDate());
+    }
+
     public static @NotNull LoadedContent loadContent(@NotNull String dataLocation) {
         String baseline = getCurrentBaseline();
         ILocation loc = Location.getLocation(IRepositoryService.DEFAULT, dataLocation, baseline);
-        IRepositoryService repositoryService = PlatformContext.getPlatform().lookupService(IRepositoryService.class);
-        IRepositoryReadOnlyConnection connection = repositoryService.getReadOnlyConnection(loc);
+        IRepositoryReadOnlyConnection connection = getConnection(loc);
         InputStream contentStream = connection.getContent(loc);
         Date lastChangedDate = connection.getResourceProperties(loc).getLastChangedDate();
         return new LoadedContent(contentStream, lastChangedDate);
     }
 
-    private static @Nullable String getCurrentBaseline() {
+    /**
+     * Reads the content in the revision of given info (not the latest one), so it always matches the revision used as cache key.
+     */
+    public static @NotNull LoadedContent loadContent(@NotNull ResourceInfo info) {
+        String revision = (info.revision != null) ? info.revision : info.baseline;
+        ILocation loc = Location.getLocation(IRepositoryService.DEFAULT, info.dataLocation, revision);
+        InputStream contentStream = getConnection(loc).getContent(loc);
+        return new LoadedContent(contentStream, info.timestamp);
+    }
+
+    private static @NotNull IRepositoryReadOnlyConnection getConnection(@NotNull ILocation loc) {
+        IRepositoryService repositoryService = PlatformContext.getPlatform().lookupService(IRepositoryService.class);
+        return repositoryService.getReadOnlyConnection(loc);
+    }
+
+    public static @Nullable String getCurrentBaseline() {
         IDataService dataService = PlatformContext.getPlatform().lookupService(IDataService.class);
         return dataService.getCurrentBaselineRevision();
     }
 
+    /**
+     * Hexadecimal SHA-256 digest of given text (encoded in UTF-8), used for compact keys of cached data.
+     */
+    public static @NotNull String sha256(@NotNull String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public static @NotNull HtmlTagBuilder addTableTag(@NotNull HtmlContentBuilder builder) {
         HtmlTagBuilder tag = builder.tag().table();
         tag.attributes().className("polarion-rpw-table-content");
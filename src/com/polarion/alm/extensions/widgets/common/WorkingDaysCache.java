@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.common;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.alm.tracker.calendar.IWorkingCalendar;
+
+/**
+ * Caches number of working days of the default working calendar. For every year a prefix sum of working days is computed once,
+ * so a count for any range of days needs just a few array lookups.
+ * <p>
+ * The calendar is resolved again when the time to live expires, so changes of the calendar configuration are picked up.
+ * Counts computed so far are then checked against the new calendar, they are dropped (and the version changes) only if some
+ * of them differ. If the calendar does not count ranges as sum of their days, ranges are counted by the calendar
+ * and only memoized.
+ */
+@SuppressWarnings("nls")
+final class WorkingDaysCache {
+
+    static final String PROPERTY_TTL_SECONDS = "com.polarion.alm.extensions.widgets.workingCalendarCacheTtl";
+    private static final long DEFAULT_TTL_SECONDS = 300;
+    private static final int MAX_CACHED_RANGES = 10000;
+    private static final int GREGORIAN_START_YEAR = 1583;
+
+    static final WorkingDaysCache INSTANCE = new WorkingDaysCache(TimeUnit.SECONDS.toMillis(Long.getLong(PROPERTY_TTL_SECONDS, DEFAULT_TTL_SECONDS)));
+
+    /**
+     * Cached counts for one resolved calendar, replaced as a whole when it expires.
+     */
+    private static final class State {
+        final @NotNull IWorkingCalendar calendar;
+        final long expires;
+        final long version;
+        /**
+         * Working days up to and including given day of the year (0-based), {@link WorkingDaysCache#NOT_ADDITIVE} for years
+         * whose days do not sum up to the count of the whole year.
+         */
+        final @NotNull ConcurrentMap<Integer, int[]> years = new ConcurrentHashMap<>();
+        final @NotNull ConcurrentMap<String, Integer> ranges = new ConcurrentHashMap<>();
+
+        State(@NotNull IWorkingCalendar calendar, long expires, long version) {
+            this.calendar = calendar;
+            this.expires = expires;
+            this.version = version;
+        }
+    }
+
+    private static final int[] NOT_ADDITIVE = new int[0];
+
+    private final long ttlMillis;
+    private volatile @Nullable State state;
+
+    WorkingDaysCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    int numberOfWorkingDays(@NotNull Date from, @NotNull Date to) {
+        State current = getState();
+        long fromDay = EpochDays.fromDate(from);
+        long toDay = EpochDays.fromDate(to);
+        if (fromDay <= toDay && EpochDays.year(fromDay) >= GREGORIAN_START_YEAR) {
+            Integer count = countByPrefixSums(current, fromDay, toDay);
+            if (count != null) {
+                return count;
+            }
+        }
+        String key = from.getTime() + ":" + to.getTime();
+        Integer count = current.ranges.get(key);
+        if (count == null) {
+            count = current.calendar.numberOfWorkingDays(from, to);
+            if (current.ranges.size() >= MAX_CACHED_RANGES) {
+                current.ranges.clear();
+            }
+            current.ranges.put(key, count);
+        }
+        return count;
+    }
+
+    /**
+     * Changes whenever the resolved calendar counts some already computed working days differently, so values computed
+     * from its working days can be cached under it.
+     */
+    long getVersion() {
+        return getState().version;
+    }
+
+    private @NotNull State getState() {
+        State current = state;
+        long now = System.currentTimeMillis();
+        if (current == null || now >= current.expires) {
+            IWorkingCalendar calendar = Utils.getWorkingCalendar();
+            current = (current == null) ? new State(calendar, now + ttlMillis, 0) : renew(current, calendar, now + ttlMillis);
+            state = current;
+        }
+        return current;
+    }
+
+    /**
+     * @return state of given calendar which keeps the counts and the version of the previous state if the calendar gives
+     *         the same counts for all of them
+     */
+    private static @NotNull State renew(@NotNull State previous, @NotNull IWorkingCalendar calendar, long expires) {
+        State result = new State(calendar, expires, previous.version);
+        for (Map.Entry<Integer, int[]> year : previous.years.entrySet()) {
+            int[] prefixSums = computeYear(calendar, year.getKey());
+            if (!Arrays.equals(prefixSums, year.getValue())) {
+                return new State(calendar, expires, previous.version + 1);
+            }
+            result.years.put(year.getKey(), prefixSums);
+        }
+        for (Map.Entry<String, Integer> range : previous.ranges.entrySet()) {
+            String[] bounds = range.getKey().split(":");
+            int count = calendar.numberOfWorkingDays(new Date(Long.parseLong(bounds[0])), new Date(Long.parseLong(bounds[1])));
+            if (count != range.getValue()) {
+                return new State(calendar, expires, previous.version + 1);
+            }
+            result.ranges.put(range.getKey(), count);
+        }
+        return result;
+    }
+
+    private static @Nullable Integer countByPrefixSums(@NotNull State state, long fromDay, long toDay) {
+        int fromYear = EpochDays.year(fromDay);
+        int toYear = EpochDays.year(toDay);
+        int count = 0;
+        for (int year = fromYear; year <= toYear; year++) {
+            int[] prefixSums = getYear(state, year);
+            if (prefixSums == NOT_ADDITIVE) {
+                return null;
+            }
+            long yearStart = EpochDays.of(year, 1, 1);
+            int first = (year == fromYear) ? (int) (fromDay - yearStart) : 0;
+            int last = (year == toYear) ? (int) (toDay - yearStart) : prefixSums.length - 1;
+            count += prefixSums[last] - ((first > 0) ? prefixSums[first - 1] : 0);
+        }
+        return count;
+    }
+
+    private static @NotNull int[] getYear(@NotNull State state, int year) {
+        int[] result = state.years.get(year);
+        if (result == null) {
+            result = computeYear(state.calendar, year);
+            state.years.put(year, result);
+        }
+        return result;
+    }
+
+    private static @NotNull int[] computeYear(@NotNull IWorkingCalendar calendar, int year) {
+        long yearStart = EpochDays.of(year, 1, 1);
+        int[] prefixSums = new int[(int) (EpochDays.of(year + 1, 1, 1) - yearStart)];
+        int count = 0;
+        for (int i = 0; i < prefixSums.length; i++) {
+            Date day = EpochDays.toDate(yearStart + i);
+            count += calendar.numberOfWorkingDays(day, day);
+            prefixSums[i] = count;
+        }
+        int yearCount = calendar.numberOfWorkingDays(EpochDays.toDate(yearStart), EpochDays.toDate(yearStart + prefixSums.length - 1));
+        return (yearCount == count) ? prefixSums : NOT_ADDITIVE;
+    }
+
+}
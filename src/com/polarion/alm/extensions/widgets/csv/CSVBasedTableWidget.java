@@ -17,10 +17,14 @@ package com.polarion.alm.extensions.widgets.csv;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import com.polarion.alm.extensions.widgets.common.Utils;
+import com.polarion.alm.extensions.widgets.common.Utils.InvalidParameterException;
 import com.polarion.alm.extensions.widgets.common.Utils.RequiredParameterException;
 import com.polarion.alm.shared.api.SharedContext;
 import com.polarion.alm.shared.api.model.rp.parameter.ParameterFactory;
@@ -39,6 +43,9 @@ public class CSVBasedTableWidget extends RichPageWidget {
 
     private static final String ICON_NAME = "table.png";
 
+    private static final String PARAM_PAGE_SIZE = "pageSize";
+    private static final String PARAM_PAGE = "page";
+
     @Override
     @NotNull
     public String getIcon(@NotNull RichPageWidgetContext widgetContext) {
@@ -68,32 +75,106 @@ public class CSVBasedTableWidget extends RichPageWidget {
     public StrictMap<String, RichPageParameter> getParametersDefinition(@NotNull ParameterFactory factory) {
         StrictMap<String, RichPageParameter> parameters = new StrictMapImpl<String, RichPageParameter>();
         CSVData.addParameter(parameters, factory);
+        CSVTableQuery.addParameters(parameters, factory);
+        parameters.put(PARAM_PAGE_SIZE, factory.string("Page Size (leave empty for all rows)").build());
+        parameters.put(PARAM_PAGE, factory.string("Page").value("1").build());
         return parameters;
     }
 
     @Override
     @NotNull
     public String renderHtml(@NotNull RichPageWidgetRenderingContext context) {
-        CSVData data;
+        CSVWidgetMetrics.Timer timer = new CSVWidgetMetrics.Timer();
+        String html = render(context, timer);
+        CSVWidgetMetrics.INSTANCE.rendered(timer, CSVData.getDataLocation(context));
+        return html + CSVWidgetMetrics.INSTANCE.renderFooter(context, timer);
+    }
+
+    private @NotNull String render(@NotNull RichPageWidgetRenderingContext context, @NotNull CSVWidgetMetrics.Timer timer) {
+        String cacheKey = getCacheKey(context);
+        String cached = (cacheKey != null) ? CSVHtmlCache.INSTANCE.get(cacheKey) : null;
+        if (cached != null) {
+            CSVWidgetMetrics.INSTANCE.htmlCacheHit();
+            return cached;
+        }
+        CSVWidgetMetrics.INSTANCE.htmlCacheMiss();
+
+        String pageSizeValue = Utils.getStringParameterValue(context, PARAM_PAGE_SIZE);
+        String pageValue = Utils.getStringParameterValue(context, PARAM_PAGE);
+        int pageSize = (pageSizeValue != null) ? parsePositive(pageSizeValue) : -1;
+        int page = (pageValue != null) ? parsePositive(pageValue) : 1;
+        if (pageSize == 0) {
+            return context.renderWarning("Page Size must be a positive number");
+        }
+        if (page == 0) {
+            return context.renderWarning("Page must be a positive number");
+        }
+        int firstRow = (pageSize < 0) ? 1 : (page - 1) * pageSize + 1;
+
+        List<String> warnings = new ArrayList<>();
+        final List<String[]> visited = new ArrayList<>();
+        int rowCount;
         try {
-            data = CSVData.get(context);
-        } catch (RequiredParameterException e) {
+            CSVTableQuery query = CSVTableQuery.fromParameters(context);
+            rowCount = CSVData.visit(context, query, firstRow, pageSize, new CSVData.Visitor() {
+
+                @Override
+                public void visit(int rowNum, @NotNull String[] rowData) {
+                    visited.add(rowData);
+                }
+            }, warnings, timer);
+        } catch (RequiredParameterException | InvalidParameterException e) {
             return context.renderWarning(e.getLocalizedMessage());
         } catch (IOException e) {
             return context.renderError(e.getLocalizedMessage());
         }
-
         HtmlFragmentBuilder builder = context.createHtmlFragmentBuilder();
-        final HtmlTagBuilder table = Utils.addTableTag(builder);
-        data.visit(new CSVData.Visitor() {
-
-            @Override
-            public void visit(int rowNum, @NotNull String[] rowData) {
-                boolean header = rowNum == 0;
-                appendRow(table, header, rowData);
-            }
-        });
-        return builder.toString();
+        HtmlTagBuilder table = Utils.addTableTag(builder);
+        for (int i = 0; i < visited.size(); i++) {
+            // the header is always visited first
+            appendRow(table, i == 0, visited.get(i));
+        }
+        if (pageSize > 0) {
+            int lastRow = Math.min(rowCount, firstRow + pageSize - 1);
+            String rows = (firstRow <= lastRow) ? "Rows " + firstRow + " - " + lastRow + " of " + rowCount : "No rows on page " + page + " of " + rowCount + " rows";
+            builder.tag().div().append().text(rows);
+        }
+        StringBuilder html = new StringBuilder();
+        for (String warning : warnings) {
+            html.append(context.renderWarning(warning));
+        }
+        html.append(builder.toString());
+        timer.end(CSVWidgetMetrics.Phase.html);
+        if (cacheKey != null && warnings.isEmpty()) {
+            CSVHtmlCache.INSTANCE.put(cacheKey, html.toString());
+        }
+        return html.toString();
+    }
+
+    /**
+     * @return given number or <code>0</code> if it is not a positive integer
+     */
+    private static int parsePositive(@NotNull String value) {
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return <code>null</code> if the key cannot be computed (rendering then reports the problem)
+     */
+    private @Nullable String getCacheKey(@NotNull RichPageWidgetRenderingContext context) {
+        try {
+            CSVHtmlCache.Key key = new CSVHtmlCache.Key(getClass().getName(), context);
+            CSVData.addToKey(key, context, false);
+            CSVTableQuery.addToKey(key, context);
+            key.add(context, PARAM_PAGE_SIZE).add(context, PARAM_PAGE);
+            return key.hash();
+        } catch (RequiredParameterException | RuntimeException e) {
+            return null;
+        }
     }
 
     private void appendRow(@NotNull HtmlTagBuilder table, boolean header, @NotNull String[] row) {
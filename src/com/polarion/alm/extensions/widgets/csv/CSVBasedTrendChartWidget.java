@@ -20,8 +20,13 @@ import java.io.InputStream;
 import java.util.Arrays;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import com.polarion.alm.extensions.widgets.common.Utils;
+import com.polarion.alm.extensions.widgets.common.Utils.RequiredParameterException;
 import com.polarion.alm.extensions.widgets.csv.CSVBasedTrendChartWidgetRenderer.Aggregation;
+import com.polarion.alm.extensions.widgets.csv.CSVBasedTrendChartWidgetRenderer.Downsampling;
+import com.polarion.alm.extensions.widgets.csv.CSVBasedTrendChartWidgetRenderer.Rendering;
 import com.polarion.alm.extensions.widgets.csv.CSVBasedTrendChartWidgetRenderer.Scale;
 import com.polarion.alm.shared.api.SharedContext;
 import com.polarion.alm.shared.api.model.rp.parameter.CompositeParameter;
@@ -54,6 +59,8 @@ public class CSVBasedTrendChartWidget extends RichPageWidget {
     static final String PARAM_TEXT_ABOVE = "textAbove";
     static final String PARAM_TEXT_BELOW = "textBelow";
     static final String PARAM_DATE_FORMAT = "dateFormat";
+    static final String PARAM_DOWNSAMPLING = "downsampling";
+    static final String PARAM_RENDERING = "rendering";
 
     @Override
     @NotNull
@@ -102,6 +109,8 @@ public class CSVBasedTrendChartWidget extends RichPageWidget {
                 .build();
         parameters.put(PARAM_DATES, dates);
         parameters.put(PARAM_TYPE, factory.string("Type [bar, column, line, spline]").value("line").build());
+        parameters.put(PARAM_DOWNSAMPLING, factory.string("Downsampling " + Arrays.asList(Downsampling.values())).value(Downsampling.none.toString()).build());
+        parameters.put(PARAM_RENDERING, factory.string("Rendering " + Arrays.asList(Rendering.values())).value(Rendering.sync.toString()).build());
         parameters.put(PARAM_TEXT_ABOVE, factory.string("Text Above").build());
         parameters.put(PARAM_TEXT_BELOW, factory.string("Text Below").build());
         parameters.put(PARAM_DATE_FORMAT, factory.string("Date Format").value("yyyy-MM-dd").build());
@@ -111,7 +120,75 @@ public class CSVBasedTrendChartWidget extends RichPageWidget {
     @Override
     @NotNull
     public String renderHtml(@NotNull RichPageWidgetRenderingContext context) {
-        return new CSVBasedTrendChartWidgetRenderer(context).render();
+        CSVWidgetMetrics.Timer timer = new CSVWidgetMetrics.Timer();
+        String html = render(context, timer);
+        CSVWidgetMetrics.INSTANCE.rendered(timer, CSVData.getDataLocation(context));
+        return html + CSVWidgetMetrics.INSTANCE.renderFooter(context, timer);
+    }
+
+    private @NotNull String render(@NotNull RichPageWidgetRenderingContext context, @NotNull CSVWidgetMetrics.Timer timer) {
+        if (isAsync(context)) {
+            String shell = renderShell(context);
+            if (shell != null) {
+                return shell;
+            }
+        }
+        String cacheKey = getCacheKey(context);
+        String cached = (cacheKey != null) ? CSVHtmlCache.INSTANCE.get(cacheKey) : null;
+        if (cached != null) {
+            CSVWidgetMetrics.INSTANCE.htmlCacheHit();
+            return cached;
+        }
+        CSVWidgetMetrics.INSTANCE.htmlCacheMiss();
+        CSVBasedTrendChartWidgetRenderer renderer = new CSVBasedTrendChartWidgetRenderer(context, timer);
+        String html = renderer.render();
+        if (cacheKey != null && renderer.isSuccessful()) {
+            CSVHtmlCache.INSTANCE.put(cacheKey, html);
+        }
+        return html;
+    }
+
+    private static boolean isAsync(@NotNull RichPageWidgetRenderingContext context) {
+        String rendering = Utils.getStringParameterValue(context, PARAM_RENDERING);
+        return Rendering.async.toString().equals(rendering);
+    }
+
+    /**
+     * Renders the chart without data, which are then fetched by the browser. The shell is never cached, because it is bound
+     * to the current user.
+     *
+     * @return <code>null</code> if the parameters are not valid (synchronous rendering then reports the problem)
+     */
+    private static @Nullable String renderShell(@NotNull RichPageWidgetRenderingContext context) {
+        CSVChartSpec spec;
+        try {
+            spec = CSVChartSpec.fromParameters(context);
+        } catch (Exception e) {
+            return null;
+        }
+        String token = CSVChartDataServlet.register(spec);
+        return CSVBasedTrendChartWidgetRenderer.renderShell(context, spec, "csv-chart-" + token, CSVChartDataServlet.getUrl(token));
+    }
+
+    /**
+     * @return <code>null</code> if the key cannot be computed (rendering then reports the problem)
+     */
+    private @Nullable String getCacheKey(@NotNull RichPageWidgetRenderingContext context) {
+        try {
+            CSVHtmlCache.Key key = new CSVHtmlCache.Key(getClass().getName(), context);
+            CSVData.addToKey(key, context, true);
+            key.add(context, PARAM_TITLE).add(context, PARAM_TYPE).add(context, PARAM_DATE_FORMAT).add(context, PARAM_DOWNSAMPLING);
+            key.add(context, PARAM_TEXT_ABOVE).add(context, PARAM_TEXT_BELOW);
+            if (CSVBasedTrendChartWidgetRenderer.usesWorkingDays(Utils.getStringParameterValue(context, PARAM_TEXT_ABOVE))
+                    || CSVBasedTrendChartWidgetRenderer.usesWorkingDays(Utils.getStringParameterValue(context, PARAM_TEXT_BELOW))) {
+                key.add(String.valueOf(Utils.getWorkingCalendarVersion()));
+            }
+            key.add(context, PARAM_SERIES, PARAM_NAME, PARAM_COLOR, PARAM_DATA_KEY, PARAM_AGGREGATION, PARAM_TYPE);
+            key.add(context, PARAM_DATES, PARAM_FROM, PARAM_TO, PARAM_SCALE, PARAM_YEAR);
+            return key.hash();
+        } catch (RequiredParameterException | RuntimeException e) {
+            return null;
+        }
     }
 
     @Override
@@ -15,26 +15,29 @@
  */
 package com.polarion.alm.extensions.widgets.csv;
 
+import java.math.BigDecimal;
 import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.regex.Pattern;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import com.polarion.alm.extensions.widgets.common.Utils;
+import com.polarion.alm.extensions.widgets.common.EpochDays;
+import com.polarion.alm.extensions.widgets.common.TextTemplate;
 import com.polarion.alm.extensions.widgets.common.Utils.Dates;
 import com.polarion.alm.extensions.widgets.common.Utils.RequiredParameterException;
-import com.polarion.alm.extensions.widgets.csv.CSVData.Visitor;
-import com.polarion.alm.shared.api.model.rp.parameter.CompositeParameter;
-import com.polarion.alm.shared.api.model.rp.parameter.DateParameter;
-import com.polarion.alm.shared.api.model.rp.parameter.MultiParameter;
+import com.polarion.alm.extensions.widgets.csv.CSVNumericData.Buckets;
+import com.polarion.alm.extensions.widgets.csv.CSVNumericData.NumberColumn;
+import com.polarion.alm.extensions.widgets.csv.CSVNumericData.Values;
+import com.polarion.alm.extensions.widgets.csv.CSVNumericData.RowRange;
 import com.polarion.alm.shared.api.model.rp.widget.RichPageWidgetRenderingContext;
 import com.polarion.alm.shared.api.utils.charts.PolarionChartBuilder;
 import com.polarion.alm.shared.api.utils.charts.highcharts.HcSerie;
@@ -42,339 +45,731 @@ import com.polarion.alm.shared.api.utils.charts.highcharts.HcSerieData;
 import com.polarion.alm.shared.api.utils.charts.highcharts.HcSerieDataObject;
 import com.polarion.alm.shared.api.utils.charts.highcharts.HighchartBuilder;
 import com.polarion.alm.shared.api.utils.html.HtmlFragmentBuilder;
+import com.polarion.alm.shared.api.utils.html.HtmlTagBuilder;
 import com.polarion.core.util.types.ThreadSafeDateFormatWrapper;
 
 @SuppressWarnings("nls")
 public class CSVBasedTrendChartWidgetRenderer {
 
-    private final @NotNull RichPageWidgetRenderingContext context;
-    private/*final*/@Nullable String title;
-    private/*final @NotNull*/
-    MultiParameter<CompositeParameter> series;
-    private/*final @NotNull*/
-    Scale scale;
-    private/*final @NotNull*/
-    String type;
+    private static final String PLACEHOLDER_WORKING_DAYS = "_workingDays";
+    private static final String PLACEHOLDER_PER_DAY_SUFFIX = "PerDay";
+    private static final String PLACEHOLDER_TIMESTAMP_PREFIX = "_timestamp";
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final @Nullable RichPageWidgetRenderingContext context;
+    private final @NotNull CSVWidgetMetrics.Timer timer;
+    private/*final @NotNull*/CSVChartSpec spec;
     private/*final*/@Nullable String textAbove;
     private/*final*/@Nullable String textBelow;
     private/*final @NotNull*/ DateFormat dateFormat;
     private/*final @NotNull*/
-    Map<Date, Map<String, Integer>> data;
+    Map<String, CSVNumericData> data;
+    private/*final*/long fromDay;
+    private/*final*/long toDay;
+    private final int firstDayOfWeek = Calendar.getInstance().getFirstDayOfWeek();
     private final @NotNull Map<String, Date> timestamps = new HashMap<>();
+    private final @NotNull List<SerieDefinition> definitions = new ArrayList<>();
+    private double minValue;
+    /**
+     * Problems which do not prevent rendering of the chart, rendered above it.
+     */
+    private final @NotNull List<String> dataWarnings = new ArrayList<>();
     private/*@Nullable*/String warning;
     private/*@Nullable*/String error;
 
     public CSVBasedTrendChartWidgetRenderer(@NotNull RichPageWidgetRenderingContext context) {
+        this(context, new CSVWidgetMetrics.Timer());
+    }
+
+    CSVBasedTrendChartWidgetRenderer(@NotNull RichPageWidgetRenderingContext context, @NotNull CSVWidgetMetrics.Timer timer) {
         this.context = context;
+        this.timer = timer;
         try {
-            title = Utils.getStringParameterValue(context, CSVBasedTrendChartWidget.PARAM_TITLE);
-            series = context.parameter(CSVBasedTrendChartWidget.PARAM_SERIES);
-            CompositeParameter datesParam = context.parameter(CSVBasedTrendChartWidget.PARAM_DATES);
-            scale = Scale.valueOf(Utils.getRequiredStringParameterValue(datesParam, CSVBasedTrendChartWidget.PARAM_SCALE));
-            String year = Utils.getStringParameterValue(datesParam, CSVBasedTrendChartWidget.PARAM_YEAR);
-            type = Utils.getRequiredStringParameterValue(context, CSVBasedTrendChartWidget.PARAM_TYPE);
-            String textAbove = Utils.getStringParameterValue(context, CSVBasedTrendChartWidget.PARAM_TEXT_ABOVE);
-            String textBelow = Utils.getStringParameterValue(context, CSVBasedTrendChartWidget.PARAM_TEXT_BELOW);
-            dateFormat = new ThreadSafeDateFormatWrapper(new SimpleDateFormat(Utils.getRequiredStringParameterValue(context, CSVBasedTrendChartWidget.PARAM_DATE_FORMAT)));
-
-            Dates dates = initDates(datesParam, year);
-
-            Map<String, CSVData> csvData = CSVData.getAll(context);
-            data = loadData(csvData, dates);
-            for (Map.Entry<String, CSVData> csvDataEntry : csvData.entrySet()) {
-                timestamps.put(csvDataEntry.getKey(), csvDataEntry.getValue().getTimestamp());
-            }
-
-            String[] texts = processTexts(textAbove, textBelow, dates);
-            this.textAbove = texts[0];
-            this.textBelow = texts[1];
+            spec = CSVChartSpec.fromParameters(context);
         } catch (RequiredParameterException e) {
             warning = e.getLocalizedMessage();
         } catch (Exception e) {
             error = e.getLocalizedMessage();
         }
+        if (spec != null) {
+            compute();
+        }
+    }
+
+    /**
+     * Computes the chart outside of the page rendering, the result is available only via {@link #toJson()}.
+     */
+    CSVBasedTrendChartWidgetRenderer(@NotNull CSVChartSpec spec, @NotNull CSVWidgetMetrics.Timer timer) {
+        context = null;
+        this.timer = timer;
+        this.spec = spec;
+        compute();
     }
 
-    private @NotNull Dates initDates(@NotNull CompositeParameter datesParam, @Nullable String year) {
-        if (year != null) {
-            return new Dates(Utils.date(Integer.parseInt(year), 0, 1), Utils.date(Integer.parseInt(year), 11, 31));
+    /**
+     * Loads the data, processes the texts and computes points of all series.
+     */
+    private void compute() {
+        try {
+            dateFormat = new ThreadSafeDateFormatWrapper(new SimpleDateFormat(spec.dateFormat));
+            fromDay = EpochDays.firstDayNotBefore(spec.dates.from);
+            toDay = EpochDays.lastDayNotAfter(spec.dates.to);
+            data = CSVData.getAllNumeric(spec.dataSources, fromDay, toDay, dataWarnings);
+            timer.end(CSVWidgetMetrics.Phase.load);
+            for (Map.Entry<String, CSVNumericData> csvDataEntry : data.entrySet()) {
+                CSVNumericData csvData = csvDataEntry.getValue();
+                timestamps.put(csvDataEntry.getKey(), csvData.getTimestamp());
+                RowRange rows = csvData.getRows(fromDay, toDay);
+                CSVWidgetMetrics.INSTANCE.addRowsFilteredByDate(csvData.getRowCount() - (rows.to - rows.from));
+            }
+
+            String[] texts = processTexts(spec.textAbove, spec.textBelow, spec.dates);
+            textAbove = texts[0];
+            textBelow = texts[1];
+
+            for (CSVChartSpec.SerieSpec serie : spec.series) {
+                definitions.add(new SerieDefinition(serie));
+            }
+            computeRollups(definitions);
+            minValue = 0;
+            for (SerieDefinition definition : definitions) {
+                if (definition.column != null) {
+                    computePoints(definition);
+                    minValue = Math.min(minValue, definition.minValue);
+                }
+            }
+            timer.end(CSVWidgetMetrics.Phase.aggregate);
+        } catch (Exception e) {
+            error = e.getLocalizedMessage();
         }
-        return new Dates(((DateParameter) datesParam.get(CSVBasedTrendChartWidget.PARAM_FROM)).value(),
-                ((DateParameter) datesParam.get(CSVBasedTrendChartWidget.PARAM_TO)).value());
     }
 
     private @NotNull String[] processTexts(@Nullable String textAbove, @Nullable String textBelow, @NotNull Dates dates) {
-        int workingDays = dates.calculateWorkingDaysBetween();
-
-        Map<String, Integer> statistics = computeStatistics(data);
+        if (textAbove == null && textBelow == null) {
+            return new String[2];
+        }
+        Statistics statistics = new Statistics(dates);
         if (textAbove != null) {
-            textAbove = processText(textAbove, statistics, workingDays);
+            textAbove = TextTemplate.compile(textAbove).render(statistics, "0");
         }
         if (textBelow != null) {
-            textBelow = processText(textBelow, statistics, workingDays);
+            textBelow = TextTemplate.compile(textBelow).render(statistics, "0");
         }
         return new String[] { textAbove, textBelow };
     }
 
     @NotNull
     public String render() {
+        if (context == null) {
+            throw new IllegalStateException("Chart computed without rendering context");
+        }
         if (error != null) {
             return context.renderError(error);
         }
         if (warning != null) {
             return context.renderWarning(warning);
         }
-        try {
-            HtmlFragmentBuilder builder = context.createHtmlFragmentBuilder();
-            if (textAbove != null) {
-                builder.tag().p().append().text(textAbove);
-            }
-            renderChart(builder);
-            if (textBelow != null) {
-                builder.tag().p().append().text(textBelow);
-            }
-            return builder.toString();
-        } catch (RequiredParameterException e) {
-            return context.renderWarning(e.getLocalizedMessage());
+        HtmlFragmentBuilder builder = context.createHtmlFragmentBuilder();
+        if (textAbove != null) {
+            builder.tag().p().append().text(textAbove);
+        }
+        HighchartBuilder hcBuilder = createChart(context, spec);
+        for (SerieDefinition definition : definitions) {
+            buildSerie(hcBuilder, definition);
+        }
+        hcBuilder.yAxis().addRawAttribute("min", formatNumber(minValue));
+        hcBuilder.render(builder, context.columnWidth() / 3, context.columnWidth());
+        if (textBelow != null) {
+            builder.tag().p().append().text(textBelow);
+        }
+        StringBuilder html = new StringBuilder();
+        for (String dataWarning : dataWarnings) {
+            html.append(context.renderWarning(dataWarning));
         }
+        html.append(builder.toString());
+        timer.end(CSVWidgetMetrics.Phase.html);
+        return html.toString();
     }
 
-    private void renderChart(@NotNull HtmlFragmentBuilder builder) throws RequiredParameterException {
+    /**
+     * @return <code>true</code> if {@link #render()} rendered the chart without any warning or error
+     */
+    public boolean isSuccessful() {
+        return error == null && warning == null && dataWarnings.isEmpty();
+    }
+
+    /**
+     * Chart with all options but without series, shared by the rendered chart and the shell of asynchronously loaded chart.
+     */
+    private static @NotNull HighchartBuilder createChart(@NotNull RichPageWidgetRenderingContext context, @NotNull CSVChartSpec spec) {
         PolarionChartBuilder chartBuilder = context.createChartBuilder();
-        chartBuilder.title(title);
+        chartBuilder.title(spec.title);
 
         HighchartBuilder hcBuilder = chartBuilder.build();
-        hcBuilder.chart().addRawAttribute("type", "'" + type + "'");
+        hcBuilder.chart().addRawAttribute("type", "'" + spec.type + "'");
         hcBuilder.chart().zoomType().x(true);
         hcBuilder.xAxis().type().datetime().addRawAttribute("labels", "{ rotation: -45 }");
         hcBuilder.yAxis().title().text(null);
         hcBuilder.plotOptions().series().addRawAttribute("marker", "{ enabled: false }");
+        return hcBuilder;
+    }
 
-        int minValue = 0;
+    /**
+     * Renders empty chart and placeholders of the texts, the series, texts and warnings are then fetched by the browser
+     * from given URL (see {@link #toJson()}) and added to the chart.
+     */
+    static @NotNull String renderShell(@NotNull RichPageWidgetRenderingContext context, @NotNull CSVChartSpec spec, @NotNull String id, @NotNull String dataUrl) {
+        HtmlFragmentBuilder builder = context.createHtmlFragmentBuilder();
+        HtmlTagBuilder container = builder.tag().div();
+        container.attributes().id(id);
+        container.append().tag().div().attributes().className(CLASS_MESSAGES);
+        container.append().tag().p().attributes().className(CLASS_TEXT_ABOVE);
+        createChart(context, spec).render(container.append(), context.columnWidth() / 3, context.columnWidth());
+        container.append().tag().p().attributes().className(CLASS_TEXT_BELOW);
+        builder.tag().script().append().html(String.format(SHELL_SCRIPT, quoteJson(id), quoteJson(dataUrl), quoteJson(CLASS_MESSAGES),
+                quoteJson(CLASS_TEXT_ABOVE), quoteJson(CLASS_TEXT_BELOW)));
+        return builder.toString();
+    }
 
-        for (CompositeParameter serie : series.get()) {
-            if (Utils.atLeastOneParameterIsSet(serie, CSVBasedTrendChartWidget.PARAM_NAME, CSVBasedTrendChartWidget.PARAM_COLOR, CSVBasedTrendChartWidget.PARAM_DATA_KEY)) {
-                int minSerieValue = buildSerie(hcBuilder, serie);
-                minValue = Math.min(minValue, minSerieValue);
+    private static final String CLASS_MESSAGES = "csv-chart-messages";
+    private static final String CLASS_TEXT_ABOVE = "csv-chart-text-above";
+    private static final String CLASS_TEXT_BELOW = "csv-chart-text-below";
+
+    /**
+     * Fetches the chart data and adds it to the chart rendered in the container (the chart may be created later than this script runs).
+     */
+    private static final String SHELL_SCRIPT = "(function() {\n"
+            + "  var container = document.getElementById(%1$s);\n"
+            + "  var setText = function(className, text) {\n"
+            + "    var element = container.getElementsByClassName(className)[0];\n"
+            + "    element.textContent = text || '';\n"
+            + "    element.style.display = text ? '' : 'none';\n"
+            + "  };\n"
+            + "  var apply = function(result, attempt) {\n"
+            + "    var chart = null;\n"
+            + "    var charts = window.Highcharts ? Highcharts.charts : [];\n"
+            + "    for (var i = 0; i < charts.length; i++) {\n"
+            + "      if (charts[i] && container.contains(charts[i].renderTo)) {\n"
+            + "        chart = charts[i];\n"
+            + "      }\n"
+            + "    }\n"
+            + "    if (chart == null && attempt < 50) {\n"
+            + "      setTimeout(function() { apply(result, attempt + 1); }, 100);\n"
+            + "      return;\n"
+            + "    }\n"
+            + "    var messages = (result.warnings || []).slice();\n"
+            + "    if (result.error) {\n"
+            + "      messages.push(result.error);\n"
+            + "    }\n"
+            + "    setText(%3$s, messages.join('\\n'));\n"
+            + "    setText(%4$s, result.textAbove);\n"
+            + "    setText(%5$s, result.textBelow);\n"
+            + "    if (chart != null && result.series) {\n"
+            + "      for (var j = 0; j < result.series.length; j++) {\n"
+            + "        chart.addSeries(result.series[j], false);\n"
+            + "      }\n"
+            + "      chart.yAxis[0].update({ min: result.min }, false);\n"
+            + "      chart.redraw();\n"
+            + "    }\n"
+            + "  };\n"
+            + "  setText(%4$s, null);\n"
+            + "  setText(%5$s, null);\n"
+            + "  var request = new XMLHttpRequest();\n"
+            + "  request.open('GET', %2$s, true);\n"
+            + "  request.onreadystatechange = function() {\n"
+            + "    if (request.readyState == 4) {\n"
+            + "      var result;\n"
+            + "      try {\n"
+            + "        result = JSON.parse(request.responseText);\n"
+            + "      } catch (e) {\n"
+            + "        result = { error: 'Loading of chart data failed (' + request.status + ')' };\n"
+            + "      }\n"
+            + "      apply(result, 0);\n"
+            + "    }\n"
+            + "  };\n"
+            + "  request.send();\n"
+            + "})();\n";
+
+    /**
+     * Result of the computation for asynchronously loaded chart: <code>error</code> or <code>warnings</code>, texts, minimum
+     * of the y axis and series in the format of Highcharts options (with points as <code>[x, y]</code> pairs).
+     */
+    @NotNull
+    String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        if (error != null || warning != null) {
+            json.append("\"error\":").append(quoteJson((error != null) ? error : warning));
+            return json.append('}').toString();
+        }
+        json.append("\"warnings\":[");
+        for (int i = 0; i < dataWarnings.size(); i++) {
+            json.append((i > 0) ? "," : "").append(quoteJson(dataWarnings.get(i)));
+        }
+        json.append("],\"textAbove\":").append(quoteJson(textAbove));
+        json.append(",\"textBelow\":").append(quoteJson(textBelow));
+        json.append(",\"min\":").append(formatNumber(minValue));
+        json.append(",\"series\":[");
+        for (int i = 0; i < definitions.size(); i++) {
+            SerieDefinition definition = definitions.get(i);
+            json.append((i > 0) ? "," : "").append("{\"name\":").append(quoteJson(definition.spec.name));
+            if (definition.spec.color != null) {
+                json.append(",\"color\":").append(quoteJson(definition.spec.color));
+            }
+            if (definition.spec.type != null) {
+                json.append(",\"type\":").append(quoteJson(definition.spec.type));
             }
+            json.append(",\"data\":[");
+            for (int point = 0; point < definition.count; point++) {
+                json.append((point > 0) ? "," : "").append('[').append(EpochDays.toDate(definition.days[point]).getTime()).append(',').append(formatNumber(definition.values[point])).append(']');
+            }
+            json.append("]}");
         }
+        timer.end(CSVWidgetMetrics.Phase.html);
+        return json.append("]}").toString();
+    }
 
-        hcBuilder.yAxis().addRawAttribute("min", minValue + "");
-
-        hcBuilder.render(builder, context.columnWidth() / 3, context.columnWidth());
-
+    /**
+     * @return JSON string literal (also safe inside of a script element) or <code>null</code>
+     */
+    static @NotNull String quoteJson(@Nullable String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder result = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20 || c == '<' || c == '>' || c == '&' || c == '\u2028' || c == '\u2029') {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
     }
 
-    private int buildSerie(@NotNull HighchartBuilder hcBuilder, @NotNull CompositeParameter serie) throws RequiredParameterException {
-        String name = Utils.getStringParameterValue(serie, CSVBasedTrendChartWidget.PARAM_NAME);
-        String color = Utils.getStringParameterValue(serie, CSVBasedTrendChartWidget.PARAM_COLOR);
-        String dataKey = Utils.getRequiredStringParameterValue(serie, CSVBasedTrendChartWidget.PARAM_DATA_KEY);
-        Aggregation aggregation = Aggregation.valueOf(Utils.getRequiredStringParameterValue(serie, CSVBasedTrendChartWidget.PARAM_AGGREGATION));
-        String type = Utils.getStringParameterValue(serie, CSVBasedTrendChartWidget.PARAM_TYPE);
+    private final class SerieDefinition {
+        final @NotNull CSVChartSpec.SerieSpec spec;
+        final @Nullable ColumnRef column;
+        /*@Nullable*/Values rollup;
+        /**
+         * Plotted points (first days of the intervals and their values), see {@link #computePoints(SerieDefinition)}.
+         */
+        long[] days;
+        double[] values;
+        int count;
+        double minValue = Double.POSITIVE_INFINITY;
+
+        SerieDefinition(@NotNull CSVChartSpec.SerieSpec spec) {
+            this.spec = spec;
+            column = findColumn(spec.dataKey);
+        }
+    }
 
-        Map<Date, Integer> serieRawData = filterDataByKey(dataKey);
+    /**
+     * Rollups of all series from the same data source are obtained together, so the rows are scanned at most once.
+     */
+    private void computeRollups(@NotNull List<SerieDefinition> definitions) {
+        Map<CSVNumericData, List<SerieDefinition>> bySource = new IdentityHashMap<>();
+        for (SerieDefinition definition : definitions) {
+            if (definition.column != null) {
+                List<SerieDefinition> sourceDefinitions = bySource.get(definition.column.data);
+                if (sourceDefinitions == null) {
+                    sourceDefinitions = new ArrayList<>();
+                    bySource.put(definition.column.data, sourceDefinitions);
+                }
+                sourceDefinitions.add(definition);
+            }
+        }
+        for (Map.Entry<CSVNumericData, List<SerieDefinition>> sourceEntry : bySource.entrySet()) {
+            List<SerieDefinition> sourceDefinitions = sourceEntry.getValue();
+            int[] columnIndexes = new int[sourceDefinitions.size()];
+            Aggregation[] aggregations = new Aggregation[sourceDefinitions.size()];
+            for (int i = 0; i < columnIndexes.length; i++) {
+                columnIndexes[i] = sourceDefinitions.get(i).column.index;
+                aggregations[i] = sourceDefinitions.get(i).spec.aggregation;
+            }
+            Values[] rollups = sourceEntry.getKey().getRollups(columnIndexes, aggregations, spec.scale, firstDayOfWeek);
+            for (int i = 0; i < columnIndexes.length; i++) {
+                SerieDefinition definition = sourceDefinitions.get(i);
+                definition.rollup = rollups[i];
+                CSVData.DataSource source = spec.dataSources.get(definition.column.source);
+                if (source != null) {
+                    CSVPrecomputeScheduler.watchRollup(source, spec.dataSources.baseline, sourceEntry.getKey().getColumnNames()[columnIndexes[i]], aggregations[i],
+                            spec.scale, firstDayOfWeek);
+                }
+            }
+        }
+    }
 
+    private void buildSerie(@NotNull HighchartBuilder hcBuilder, @NotNull SerieDefinition definition) {
         HcSerie hcSerie = hcBuilder.series().add();
-        if (type != null) {
-            hcSerie.addRawAttribute("type", "'" + type + "'");
+        if (definition.spec.type != null) {
+            hcSerie.addRawAttribute("type", "'" + definition.spec.type + "'");
         }
-        if (name != null) {
-            hcSerie.name(name);
+        if (definition.spec.name != null) {
+            hcSerie.name(definition.spec.name);
+        }
+        HcSerieData hcSerieData = hcSerie.color(definition.spec.color).data();
+        for (int i = 0; i < definition.count; i++) {
+            HcSerieDataObject serieDataPoint = hcSerieData.add();
+            serieDataPoint.x(EpochDays.toDate(definition.days[i]));
+            serieDataPoint.y(definition.values[i]);
         }
-        HcSerieData hcSerieData = hcSerie.color(color).data();
-
-        return plotScaledData(serieRawData, hcSerieData, aggregation);
     }
 
-    private int plotScaledData(@NotNull Map<Date, Integer> serieRawData, @NotNull HcSerieData hcSerieData, @NotNull Aggregation aggregation) {
-        int minValue = Integer.MAX_VALUE;
+    private void computePoints(@NotNull SerieDefinition definition) {
+        ColumnRef serie = definition.column;
+        RowRange rows = serie.rows;
+        if (rows.from == rows.to) {
+            return;
+        }
 
-        Map<Date, Integer> serieScaledRawData = scaleSerieRawData(serieRawData, scale, aggregation);
-        for (Map.Entry<Date, Integer> serieDataEntry : serieScaledRawData.entrySet()) {
-            HcSerieDataObject serieDataPoint = hcSerieData.add();
-            serieDataPoint.x(serieDataEntry.getKey());
-            int value = serieDataEntry.getValue();
-            minValue = Math.min(minValue, value);
-            serieDataPoint.y(value);
+        Buckets buckets = serie.data.getBuckets(spec.scale, firstDayOfWeek);
+        int firstBucket = buckets.getBucketOfRow(rows.from);
+        int lastBucket = buckets.getBucketOfRow(rows.to - 1);
+        long[] days = new long[lastBucket - firstBucket + 1];
+        double[] values = new double[days.length];
+        int count = 0;
+        for (int bucket = firstBucket; bucket <= lastBucket; bucket++) {
+            int start = buckets.getStart(bucket);
+            int end = buckets.getEnd(bucket);
+            double value;
+            if (start >= rows.from && end <= rows.to) {
+                value = definition.rollup.isPresent(bucket) ? definition.rollup.get(bucket) : Double.NaN;
+            } else {
+                // interval only partially visible
+                value = serie.column.aggregate(Math.max(start, rows.from), Math.min(end, rows.to), definition.spec.aggregation);
+            }
+            if (!Double.isNaN(value)) {
+                days[count] = buckets.getDay(bucket);
+                values[count] = value;
+                definition.minValue = Math.min(definition.minValue, value);
+                count++;
+            }
         }
 
-        return minValue;
+        int maxPoints = Math.max(2, spec.columnWidth);
+        if (spec.downsampling == Downsampling.minMax && count > maxPoints) {
+            count = downsampleMinMax(days, values, count, maxPoints);
+        }
+        definition.days = days;
+        definition.values = values;
+        definition.count = count;
     }
 
-    private @NotNull Map<Date, Integer> filterDataByKey(@NotNull String dataKey) {
-        Map<Date, Integer> serieRawData = new LinkedHashMap<>();
-        for (Map.Entry<Date, Map<String, Integer>> dataEntry : data.entrySet()) {
-            Date date = dataEntry.getKey();
-
-            Map<String, Integer> items = dataEntry.getValue();
-            Integer number = items.get(dataKey);
-            if (number != null) {
-                serieRawData.put(date, number);
+    /**
+     * Splits the points into groups (one per two pixels of the chart width) and keeps only the minimum and the maximum
+     * of every group in their original order, so spikes stay visible. Points are compacted in place.
+     *
+     * @return number of kept points (at most <code>maxPoints</code>)
+     */
+    static int downsampleMinMax(@NotNull long[] days, @NotNull double[] values, int count, int maxPoints) {
+        int groups = maxPoints / 2;
+        int kept = 0;
+        for (int group = 0; group < groups; group++) {
+            int from = (int) ((long) count * group / groups);
+            int to = (int) ((long) count * (group + 1) / groups);
+            int min = from;
+            int max = from;
+            for (int i = from + 1; i < to; i++) {
+                if (values[i] < values[min]) {
+                    min = i;
+                }
+                if (values[i] > values[max]) {
+                    max = i;
+                }
+            }
+            int first = Math.min(min, max);
+            int second = Math.max(min, max);
+            days[kept] = days[first];
+            values[kept] = values[first];
+            kept++;
+            if (second != first) {
+                days[kept] = days[second];
+                values[kept] = values[second];
+                kept++;
             }
         }
-        return serieRawData;
+        return kept;
     }
 
-    private @NotNull String processText(@NotNull String text, @NotNull Map<String, Integer> statistics, int workingDays) {
-        text = text.replace("${_workingDays}", workingDays + "");
-        for (Map.Entry<String, Integer> statisticsEntry : statistics.entrySet()) {
-            String key = statisticsEntry.getKey().replaceAll("\\s+", "");
-            int value = statisticsEntry.getValue();
-            text = text.replace("${" + key + "}", value + "");
-            float perDay = (workingDays > 0) ? value / (float) workingDays : 0;
-            text = text.replace("${" + key + "PerDay}", String.format("%.1f", perDay));
-        }
-        for (Map.Entry<String, Date> timestampsEntry : timestamps.entrySet()) {
-            String key = timestampsEntry.getKey();
-            if (key == null) {
-                key = "";
-            }
-            Date timestamp = timestampsEntry.getValue();
-            text = text.replace("${_timestamp" + key + "}", dateFormat.format(timestamp));
-        }
-        text = text.replaceAll("\\$\\{.*?\\}", "0");
-        return text;
+    /**
+     * Column of one of the data sources, data keys of additional data sources are prefixed with the data source name followed by dot.
+     */
+    private static final class ColumnRef {
+        /**
+         * <code>null</code> for the main data source.
+         */
+        final @Nullable String source;
+        final @NotNull CSVNumericData data;
+        final int index;
+        final @NotNull NumberColumn column;
+        final @NotNull RowRange rows;
+
+        ColumnRef(@Nullable String source, @NotNull CSVNumericData data, int index, @NotNull RowRange rows) {
+            this.source = source;
+            this.data = data;
+            this.index = index;
+            column = data.getColumn(index);
+            this.rows = rows;
+        }
     }
 
-    private @NotNull Map<String, Integer> computeStatistics(@NotNull Map<Date, Map<String, Integer>> data) {
-        Map<String, Integer> statistics = new LinkedHashMap<>();
-        for (Map<String, Integer> dataItems : data.values()) {
-            for (Map.Entry<String, Integer> dataItem : dataItems.entrySet()) {
-                Integer number = statistics.get(dataItem.getKey());
-                if (number == null) {
-                    number = 0;
+    private @Nullable ColumnRef findColumn(@NotNull String dataKey) {
+        for (Map.Entry<String, CSVNumericData> dataEntry : data.entrySet()) {
+            String keyPrefix = dataEntry.getKey() == null ? "" : dataEntry.getKey() + ".";
+            if (dataKey.startsWith(keyPrefix)) {
+                CSVNumericData csvData = dataEntry.getValue();
+                int index = csvData.getColumnIndex(dataKey.substring(keyPrefix.length()));
+                if (index >= 0) {
+                    return new ColumnRef(dataEntry.getKey(), csvData, index, csvData.getRows(fromDay, toDay));
                 }
-                statistics.put(dataItem.getKey(), number + dataItem.getValue());
             }
         }
-        return statistics;
+        return null;
     }
 
-    private @NotNull Map<Date, Integer> scaleSerieRawData(@NotNull Map<Date, Integer> serieRawData, @NotNull Scale scale, @NotNull Aggregation aggregation) {
-        Map<Date, Integer> scaled = new TreeMap<>();
-        for (Map.Entry<Date, Integer> dataEntry : serieRawData.entrySet()) {
-            Date scaledDate = scale.scaleDate(dataEntry.getKey());
-            Integer stored = scaled.get(scaledDate);
-            int computed = aggregation.compute(stored, dataEntry.getValue());
-            scaled.put(scaledDate, computed);
+    /**
+     * Resolves placeholders of the texts, only statistics (and working days) actually referenced by the texts are computed.
+     */
+    private final class Statistics implements TextTemplate.Resolver {
+        private final @NotNull Dates dates;
+        private final @NotNull Map<String, String> values = new HashMap<>();
+        private int workingDays = -1;
+        private/*@Nullable*/Map<String, ColumnRef> columns;
+
+        Statistics(@NotNull Dates dates) {
+            this.dates = dates;
+        }
+
+        @Override
+        @Nullable
+        public String resolve(@NotNull String name) {
+            if (values.containsKey(name)) {
+                return values.get(name);
+            }
+            String value = compute(name);
+            values.put(name, value);
+            return value;
+        }
+
+        private @Nullable String compute(@NotNull String name) {
+            if (name.equals(PLACEHOLDER_WORKING_DAYS)) {
+                return String.valueOf(getWorkingDays());
+            }
+            ColumnRef column = getColumns().get(name);
+            if (column != null) {
+                return sum(column);
+            }
+            if (name.endsWith(PLACEHOLDER_PER_DAY_SUFFIX)) {
+                column = getColumns().get(name.substring(0, name.length() - PLACEHOLDER_PER_DAY_SUFFIX.length()));
+                double sum = (column != null) ? column.column.aggregate(column.rows.from, column.rows.to, Aggregation.sum) : Double.NaN;
+                if (!Double.isNaN(sum)) {
+                    int workingDays = getWorkingDays();
+                    double perDay = (workingDays > 0) ? sum / workingDays : 0;
+                    return String.format("%.1f", perDay);
+                }
+            }
+            if (name.startsWith(PLACEHOLDER_TIMESTAMP_PREFIX)) {
+                String key = name.substring(PLACEHOLDER_TIMESTAMP_PREFIX.length());
+                Date timestamp = timestamps.get(key.isEmpty() ? null : key);
+                if (timestamp != null) {
+                    return dateFormat.format(timestamp);
+                }
+            }
+            return null;
+        }
+
+        private int getWorkingDays() {
+            if (workingDays < 0) {
+                workingDays = dates.calculateWorkingDaysBetween();
+            }
+            return workingDays;
+        }
+
+        /**
+         * Columns of all data sources by their statistics key (data key without whitespace), no values are read here.
+         */
+        private @NotNull Map<String, ColumnRef> getColumns() {
+            if (columns == null) {
+                columns = new HashMap<>();
+                for (Map.Entry<String, CSVNumericData> dataEntry : data.entrySet()) {
+                    String keyPrefix = dataEntry.getKey() == null ? "" : dataEntry.getKey() + ".";
+                    CSVNumericData csvData = dataEntry.getValue();
+                    String[] columnNames = csvData.getColumnNames();
+                    RowRange rows = csvData.getRows(fromDay, toDay);
+                    for (int i = 0; i < columnNames.length; i++) {
+                        String key = WHITESPACE.matcher(keyPrefix + columnNames[i]).replaceAll("");
+                        if (!columns.containsKey(key)) {
+                            columns.put(key, new ColumnRef(dataEntry.getKey(), csvData, i, rows));
+                        }
+                    }
+                }
+            }
+            return columns;
+        }
+
+        /**
+         * @return sum of the column in the visible interval or <code>null</code> if it has no values there
+         */
+        private @Nullable String sum(@NotNull ColumnRef column) {
+            double sum = column.column.aggregate(column.rows.from, column.rows.to, Aggregation.sum);
+            return Double.isNaN(sum) ? null : formatNumber(sum);
         }
-        return scaled;
     }
 
-    private static final DateFormat xmlDateFormat = new ThreadSafeDateFormatWrapper(new SimpleDateFormat("yyyy-MM-dd"));
+    /**
+     * @return <code>true</code> if given text has placeholders computed from the working calendar
+     */
+    static boolean usesWorkingDays(@Nullable String text) {
+        return text != null && (text.contains("${" + PLACEHOLDER_WORKING_DAYS + "}") || text.contains(PLACEHOLDER_PER_DAY_SUFFIX + "}"));
+    }
+
+    /**
+     * @return the number without exponent and trailing zeros (integers without decimal point), usable in JSON and JavaScript
+     */
+    static @NotNull String formatNumber(double number) {
+        if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+            return String.valueOf((long) number);
+        }
+        return BigDecimal.valueOf(number).stripTrailingZeros().toPlainString();
+    }
 
     enum Scale {
         day {
             @Override
-            protected void scaleDate(@NotNull Calendar cal) {
-                // no change
+            public long scaleDay(long epochDay, int firstDayOfWeek) {
+                return epochDay;
             }
         },
         week {
             @Override
-            protected void scaleDate(@NotNull Calendar cal) {
-                cal.set(Calendar.DAY_OF_WEEK, cal.getFirstDayOfWeek());
+            public long scaleDay(long epochDay, int firstDayOfWeek) {
+                // 1970-01-01 was Thursday
+                int dayOfWeek = (int) (((epochDay + 4) % 7 + 7) % 7) + Calendar.SUNDAY;
+                return epochDay - (dayOfWeek - firstDayOfWeek + 7) % 7;
             }
         },
         month {
             @Override
-            protected void scaleDate(@NotNull Calendar cal) {
-                cal.set(Calendar.DAY_OF_MONTH, 1);
+            public long scaleDay(long epochDay, int firstDayOfWeek) {
+                return epochDay - EpochDays.dayOfMonth(epochDay) + 1;
             }
         },
         year {
             @Override
-            protected void scaleDate(@NotNull Calendar cal) {
-                cal.set(Calendar.DAY_OF_YEAR, 1);
+            public long scaleDay(long epochDay, int firstDayOfWeek) {
+                return EpochDays.of(EpochDays.year(epochDay), 1, 1);
             }
         };
 
-        public @NotNull Date scaleDate(@NotNull Date date) {
-            Calendar cal = Calendar.getInstance();
-            cal.setTime(date);
-            cal.set(Calendar.HOUR_OF_DAY, 0);
-            cal.set(Calendar.MINUTE, 0);
-            cal.set(Calendar.SECOND, 0);
-            cal.set(Calendar.MILLISECOND, 0);
-            scaleDate(cal);
-            return cal.getTime();
-        }
+        /**
+         * @param firstDayOfWeek see {@link Calendar#getFirstDayOfWeek()}
+         * @return first day of the interval containing given day
+         */
+        public abstract long scaleDay(long epochDay, int firstDayOfWeek);
+    }
+
+    /**
+     * Reduction of series with more points than the chart has pixels.
+     */
+    enum Downsampling {
+        none,
+        minMax;
+    }
 
-        protected abstract void scaleDate(@NotNull Calendar cal);
+    /**
+     * Whether the chart is computed while the page is rendered or fetched by the browser afterwards (see {@link CSVChartDataServlet}).
+     */
+    enum Rendering {
+        sync,
+        async;
     }
 
+    /**
+     * Aggregations work on fixed-point values of a column (see {@link CSVNumericData.NumberColumn}): values are accumulated
+     * as longs and converted to the resulting double only once per interval, so every aggregation (including {@link #avg}) needs
+     * a single pass over the rows.
+     */
     enum Aggregation {
         sum {
             @Override
-            public int compute(@Nullable Integer stored, int current) {
-                return (stored == null) ? current : stored + current;
+            long accumulate(long stored, long current) {
+                return stored + current;
             }
         },
         first {
             @Override
-            public int compute(@Nullable Integer stored, int current) {
-                return (stored == null) ? current : stored;
+            long accumulate(long stored, long current) {
+                return stored;
             }
         },
         last {
             @Override
-            public int compute(@Nullable Integer stored, int current) {
+            long accumulate(long stored, long current) {
                 return current;
             }
         },
         min {
             @Override
-            public int compute(@Nullable Integer stored, int current) {
-                return (stored == null) ? current : Math.min(stored, current);
+            long accumulate(long stored, long current) {
+                return Math.min(stored, current);
             }
         },
         max {
             @Override
-            public int compute(@Nullable Integer stored, int current) {
-                return (stored == null) ? current : Math.max(stored, current);
+            long accumulate(long stored, long current) {
+                return Math.max(stored, current);
+            }
+        },
+        avg {
+            @Override
+            long accumulate(long stored, long current) {
+                return stored + current;
             }
-        };
 
-        abstract public int compute(@Nullable Integer stored, int current);
-    }
+            @Override
+            double result(long accumulated, long count, int decimals) {
+                return CSVNumericData.toDouble(accumulated, decimals) / count;
+            }
+        },
+        count {
+            @Override
+            long accumulate(long stored, long current) {
+                return stored;
+            }
 
-    private @NotNull Map<Date, Map<String, Integer>> loadData(@NotNull Map<String, CSVData> csvData, @NotNull final Dates dates) {
-        Map<Date, Map<String, Integer>> data = new TreeMap<>();
-        for (Map.Entry<String, CSVData> csvDataEntry : csvData.entrySet()) {
-            String keyPrefix = csvDataEntry.getKey() == null ? "" : csvDataEntry.getKey() + ".";
-            loadData(data, keyPrefix, csvDataEntry.getValue(), dates);
-        }
-        return data;
-    }
+            @Override
+            double result(long accumulated, long count, int decimals) {
+                return count;
+            }
 
-    private void loadData(final @NotNull Map<Date, Map<String, Integer>> data, @NotNull final String keyPrefix, @NotNull CSVData csvData, @NotNull final Dates dates) {
-        final String[] header = csvData.getHeader();
-        csvData.visit(new Visitor() {
             @Override
-            public void visit(int rowNum, @NotNull String[] rowData) {
-                if (rowNum > 0) {
-                    if (rowData.length > 0) {
-                        Date date;
-                        try {
-                            date = xmlDateFormat.parse(rowData[0]);
-                        } catch (ParseException e) {
-                            throw new RuntimeException(e);
-                        }
-                        if (date.getTime() >= dates.from.getTime() && date.getTime() <= dates.to.getTime()) {
-                            Map<String, Integer> dataForDate = data.get(date);
-                            if (dataForDate == null) {
-                                dataForDate = new HashMap<>();
-                            }
-                            for (int i = 1; i < rowData.length; i++) {
-                                String key = keyPrefix + header[i];
-                                int value = Integer.parseInt(rowData[i]);
-                                dataForDate.put(key, value);
-                            }
-                            data.put(date, dataForDate);
-                        }
-                    }
-                }
+            boolean isIdentity() {
+                return false;
             }
-        });
+        };
+
+        /**
+         * Combines value aggregated so far with the next value (in date order), the first value of an interval is taken as it is.
+         */
+        abstract long accumulate(long stored, long current);
+
+        /**
+         * @param count number of accumulated values (at least one)
+         * @param decimals decimal places of the values
+         */
+        double result(long accumulated, long count, int decimals) {
+            return CSVNumericData.toDouble(accumulated, decimals);
+        }
+
+        /**
+         * @return <code>true</code> if aggregation of a single value is the value itself
+         */
+        boolean isIdentity() {
+            return true;
+        }
     }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.platform.core.PlatformContext;
+import com.polarion.platform.security.ISecurityService;
+
+/**
+ * Computes series of asynchronously rendered trend charts (see {@link CSVBasedTrendChartWidgetRenderer#toJson()}).
+ * <p>
+ * The widget registers resolved parameters of the chart together with the current user under a random token and the browser
+ * then requests the data with this token, so the data are always read with permissions of the user who rendered the page.
+ * The token is accepted only from the same (authenticated) user, so a leaked URL does not give access to the data.
+ */
+@SuppressWarnings("nls")
+public class CSVChartDataServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String URL = "/polarion/extra-widgets/chart-data";
+    static final String PARAM_TOKEN = "token";
+    private static final long TOKEN_TTL = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_TOKENS = 10000;
+
+    private static final class Request {
+        final @NotNull CSVChartSpec spec;
+        final @NotNull Subject subject;
+        final @Nullable String user;
+        final long expires;
+
+        Request(@NotNull CSVChartSpec spec, @NotNull Subject subject, @Nullable String user, long expires) {
+            this.spec = spec;
+            this.subject = subject;
+            this.user = user;
+            this.expires = expires;
+        }
+    }
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Registered requests in order of their expiration (all tokens live equally long).
+     */
+    private static final Map<String, Request> requests = new LinkedHashMap<>();
+
+    /**
+     * @return token under which the browser fetches data of given chart from {@link #getUrl(String)}
+     */
+    static @NotNull String register(@NotNull CSVChartSpec spec) {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b & 0xff));
+        }
+        ISecurityService securityService = getSecurityService();
+        long now = System.currentTimeMillis();
+        Request request = new Request(spec, securityService.getCurrentSubject(), securityService.getCurrentUser(), now + TOKEN_TTL);
+        synchronized (requests) {
+            // drops all expired requests and the oldest ones over the limit
+            Iterator<Request> iterator = requests.values().iterator();
+            while (iterator.hasNext()) {
+                Request eldest = iterator.next();
+                if (eldest.expires >= now && requests.size() < MAX_TOKENS) {
+                    break;
+                }
+                iterator.remove();
+            }
+            requests.put(token.toString(), request);
+        }
+        return token.toString();
+    }
+
+    static @NotNull String getUrl(@NotNull String token) {
+        return URL + "?" + PARAM_TOKEN + "=" + token;
+    }
+
+    private static @Nullable Request getRequest(@Nullable String token) {
+        if (token == null) {
+            return null;
+        }
+        Request request;
+        synchronized (requests) {
+            request = requests.get(token);
+        }
+        return (request != null && request.expires >= System.currentTimeMillis()) ? request : null;
+    }
+
+    private static @NotNull ISecurityService getSecurityService() {
+        return PlatformContext.getPlatform().lookupService(ISecurityService.class);
+    }
+
+    /**
+     * @return <code>true</code> if given HTTP request comes from the user who registered given chart request
+     */
+    private static boolean isOwner(@NotNull HttpServletRequest req, @NotNull Request request) {
+        if (request.user == null) {
+            return false;
+        }
+        return request.user.equals(getSecurityService().getCurrentUser()) || request.user.equals(req.getRemoteUser());
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-store");
+        final Request request = getRequest(req.getParameter(PARAM_TOKEN));
+        String json;
+        if (request == null) {
+            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            json = "{\"error\":\"Chart data expired, reload the page\"}";
+        } else if (!isOwner(req, request)) {
+            resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            json = "{\"error\":\"Chart data belong to another user\"}";
+        } else {
+            try {
+                json = (String) getSecurityService().doAsUser(request.subject, new PrivilegedExceptionAction<String>() {
+                    @Override
+                    public String run() {
+                        CSVWidgetMetrics.Timer timer = new CSVWidgetMetrics.Timer();
+                        String result = new CSVBasedTrendChartWidgetRenderer(request.spec, timer).toJson();
+                        CSVWidgetMetrics.INSTANCE.rendered(timer, request.spec.dataSources.sources.get(0).dataLocation);
+                        return result;
+                    }
+                });
+            } catch (PrivilegedActionException e) {
+                resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                json = "{\"error\":" + CSVBasedTrendChartWidgetRenderer.quoteJson(e.getException().getLocalizedMessage()) + "}";
+            }
+        }
+        PrintWriter writer = resp.getWriter();
+        writer.write(json);
+        writer.flush();
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.alm.extensions.widgets.common.Utils;
+import com.polarion.alm.extensions.widgets.common.Utils.Dates;
+import com.polarion.alm.extensions.widgets.common.Utils.RequiredParameterException;
+import com.polarion.alm.extensions.widgets.csv.CSVBasedTrendChartWidgetRenderer.Aggregation;
+import com.polarion.alm.extensions.widgets.csv.CSVBasedTrendChartWidgetRenderer.Downsampling;
+import com.polarion.alm.extensions.widgets.csv.CSVBasedTrendChartWidgetRenderer.Scale;
+import com.polarion.alm.shared.api.model.rp.parameter.CompositeParameter;
+import com.polarion.alm.shared.api.model.rp.parameter.DateParameter;
+import com.polarion.alm.shared.api.model.rp.parameter.MultiParameter;
+import com.polarion.alm.shared.api.model.rp.widget.RichPageWidgetRenderingContext;
+
+/**
+ * Parameters of the trend chart widget resolved from the rendering context, so the chart can be computed without it
+ * (see {@link CSVChartDataServlet}).
+ */
+final class CSVChartSpec {
+
+    static final class SerieSpec {
+        final @Nullable String name;
+        final @Nullable String color;
+        final @NotNull String dataKey;
+        final @NotNull Aggregation aggregation;
+        final @Nullable String type;
+
+        SerieSpec(@NotNull CompositeParameter serie) throws RequiredParameterException {
+            name = Utils.getStringParameterValue(serie, CSVBasedTrendChartWidget.PARAM_NAME);
+            color = Utils.getStringParameterValue(serie, CSVBasedTrendChartWidget.PARAM_COLOR);
+            dataKey = Utils.getRequiredStringParameterValue(serie, CSVBasedTrendChartWidget.PARAM_DATA_KEY);
+            aggregation = Aggregation.valueOf(Utils.getRequiredStringParameterValue(serie, CSVBasedTrendChartWidget.PARAM_AGGREGATION));
+            type = Utils.getStringParameterValue(serie, CSVBasedTrendChartWidget.PARAM_TYPE);
+        }
+    }
+
+    final @Nullable String title;
+    final @NotNull String type;
+    final @NotNull Scale scale;
+    final @NotNull Downsampling downsampling;
+    final @Nullable String textAbove;
+    final @Nullable String textBelow;
+    final @NotNull String dateFormat;
+    final @NotNull Dates dates;
+    final @NotNull List<SerieSpec> series;
+    final @NotNull CSVData.DataSources dataSources;
+    final int columnWidth;
+
+    private CSVChartSpec(@NotNull RichPageWidgetRenderingContext context) throws RequiredParameterException {
+        title = Utils.getStringParameterValue(context, CSVBasedTrendChartWidget.PARAM_TITLE);
+        CompositeParameter datesParam = context.parameter(CSVBasedTrendChartWidget.PARAM_DATES);
+        scale = Scale.valueOf(Utils.getRequiredStringParameterValue(datesParam, CSVBasedTrendChartWidget.PARAM_SCALE));
+        String year = Utils.getStringParameterValue(datesParam, CSVBasedTrendChartWidget.PARAM_YEAR);
+        type = Utils.getRequiredStringParameterValue(context, CSVBasedTrendChartWidget.PARAM_TYPE);
+        String downsamplingValue = Utils.getStringParameterValue(context, CSVBasedTrendChartWidget.PARAM_DOWNSAMPLING);
+        downsampling = (downsamplingValue != null) ? Downsampling.valueOf(downsamplingValue) : Downsampling.none;
+        textAbove = Utils.getStringParameterValue(context, CSVBasedTrendChartWidget.PARAM_TEXT_ABOVE);
+        textBelow = Utils.getStringParameterValue(context, CSVBasedTrendChartWidget.PARAM_TEXT_BELOW);
+        dateFormat = Utils.getRequiredStringParameterValue(context, CSVBasedTrendChartWidget.PARAM_DATE_FORMAT);
+        dates = initDates(datesParam, year);
+        List<SerieSpec> series = new ArrayList<>();
+        MultiParameter<CompositeParameter> seriesParam = context.parameter(CSVBasedTrendChartWidget.PARAM_SERIES);
+        for (CompositeParameter serie : seriesParam.get()) {
+            if (Utils.atLeastOneParameterIsSet(serie, CSVBasedTrendChartWidget.PARAM_NAME, CSVBasedTrendChartWidget.PARAM_COLOR, CSVBasedTrendChartWidget.PARAM_DATA_KEY)) {
+                series.add(new SerieSpec(serie));
+            }
+        }
+        this.series = Collections.unmodifiableList(series);
+        dataSources = CSVData.getDataSources(context);
+        columnWidth = context.columnWidth();
+    }
+
+    static @NotNull CSVChartSpec fromParameters(@NotNull RichPageWidgetRenderingContext context) throws RequiredParameterException {
+        return new CSVChartSpec(context);
+    }
+
+    private static @NotNull Dates initDates(@NotNull CompositeParameter datesParam, @Nullable String year) {
+        if (year != null) {
+            return new Dates(Utils.date(Integer.parseInt(year), 0, 1), Utils.date(Integer.parseInt(year), 11, 31));
+        }
+        return new Dates(((DateParameter) datesParam.get(CSVBasedTrendChartWidget.PARAM_FROM)).value(),
+                ((DateParameter) datesParam.get(CSVBasedTrendChartWidget.PARAM_TO)).value());
+    }
+
+}
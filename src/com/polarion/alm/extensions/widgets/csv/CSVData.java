@@ -15,22 +15,30 @@
  */
 package com.polarion.alm.extensions.widgets.csv;
 
-import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import com.polarion.alm.extensions.widgets.common.Utils;
 import com.polarion.alm.extensions.widgets.common.Utils.LoadedContent;
 import com.polarion.alm.extensions.widgets.common.Utils.RequiredParameterException;
+import com.polarion.alm.extensions.widgets.common.Utils.ResourceInfo;
 import com.polarion.alm.shared.api.model.rp.parameter.CompositeParameter;
 import com.polarion.alm.shared.api.model.rp.parameter.CompositeParameter.Builder;
 import com.polarion.alm.shared.api.model.rp.parameter.MultiParameter;
@@ -40,31 +48,345 @@ import com.polarion.alm.shared.api.model.rp.widget.RichPageWidgetRenderingContex
 import com.polarion.alm.shared.api.utils.collections.StrictMap;
 
 @SuppressWarnings("nls")
-public class CSVData {
+public class CSVData implements CSVDataCache.Cacheable {
 
-    private final @NotNull String[][] data;
+    /**
+     * Columns with at most this many distinct values are always dictionary encoded.
+     */
+    private static final int MIN_DICTIONARY_LIMIT = 256;
+    /**
+     * Column whose dictionary grows over this size is stored as plain strings.
+     */
+    private static final int MAX_DICTIONARY_SIZE = 65536;
+
+    /**
+     * Number of rows including the header.
+     */
+    private final int rowCount;
+    /**
+     * Number of fields of every row (trailing empty fields are not counted), missing fields are stored as empty strings.
+     */
+    private final @NotNull int[] rowLengths;
+    private final @NotNull Column[] columns;
     private final @NotNull Date timestamp;
+    /**
+     * Row indexes sorted by some column, computed lazily (see {@link #getSortedRows(int, boolean)}).
+     */
+    private final @NotNull ConcurrentMap<String, int[]> sortedRows = new ConcurrentHashMap<>();
+
+    /**
+     * Cells of one column stored either as codes to a dictionary of distinct values (for typical columns like status or team)
+     * or as plain strings (for columns with mostly unique values).
+     */
+    private abstract static class Column {
+        @NotNull
+        abstract String get(int row);
+
+        abstract long estimatedSize();
+    }
+
+    private static final class DictionaryColumn extends Column {
+        final @NotNull String[] dictionary;
+        final @NotNull int[] codes;
+
+        DictionaryColumn(@NotNull String[] dictionary, @NotNull int[] codes) {
+            this.dictionary = dictionary;
+            this.codes = codes;
+        }
+
+        @Override
+        @NotNull
+        String get(int row) {
+            return dictionary[codes[row]];
+        }
+
+        @Override
+        long estimatedSize() {
+            return 32 + 4L * codes.length + stringsSize(dictionary);
+        }
+    }
+
+    private static final class PlainColumn extends Column {
+        final @NotNull String[] values;
+
+        PlainColumn(@NotNull String[] values) {
+            this.values = values;
+        }
+
+        @Override
+        @NotNull
+        String get(int row) {
+            return values[row];
+        }
+
+        @Override
+        long estimatedSize() {
+            return 16 + stringsSize(values);
+        }
+    }
+
+    private static long stringsSize(@NotNull String[] strings) {
+        long size = 16 + 4L * strings.length;
+        for (String string : strings) {
+            size += 40 + 2L * string.length();
+        }
+        return size;
+    }
+
+    /**
+     * Interns values of one column while parsing, switches to plain strings if there are too many distinct values.
+     */
+    private static final class ColumnBuilder {
+        private @Nullable Map<String, Integer> codes = new HashMap<>();
+        private final @NotNull List<String> dictionary = new ArrayList<>();
+        private int[] rowCodes = new int[16];
+        private String[] values;
+        private int size;
+
+        ColumnBuilder(int emptyRows) {
+            for (int i = 0; i < emptyRows; i++) {
+                add("");
+            }
+        }
+
+        void add(@NotNull String value) {
+            if (codes != null) {
+                Integer code = codes.get(value);
+                if (code == null) {
+                    if (dictionary.size() >= MAX_DICTIONARY_SIZE) {
+                        switchToPlain();
+                        add(value);
+                        return;
+                    }
+                    code = dictionary.size();
+                    codes.put(value, code);
+                    dictionary.add(value);
+                }
+                if (size == rowCodes.length) {
+                    rowCodes = Arrays.copyOf(rowCodes, 2 * size);
+                }
+                rowCodes[size++] = code;
+            } else {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, 2 * size);
+                }
+                values[size++] = value;
+            }
+        }
+
+        private void switchToPlain() {
+            values = new String[Math.max(16, rowCodes.length)];
+            for (int i = 0; i < size; i++) {
+                values[i] = dictionary.get(rowCodes[i]);
+            }
+            codes = null;
+            rowCodes = null;
+        }
+
+        @NotNull
+        Column build() {
+            if (codes != null && dictionary.size() > Math.max(MIN_DICTIONARY_LIMIT, size / 2)) {
+                switchToPlain();
+            }
+            if (codes != null) {
+                return new DictionaryColumn(dictionary.toArray(new String[0]), Arrays.copyOf(rowCodes, size));
+            }
+            return new PlainColumn(Arrays.copyOf(values, size));
+        }
+    }
+
+    static final CSVDataCache.Parser<CSVData> PARSER = new CSVDataParser();
+
+    /**
+     * Snapshot consists of row lengths followed by a block for every column: dictionary of distinct values with codes of all cells
+     * or all cells as plain strings. Strings are stored as end offsets followed by all of them encoded in UTF-8.
+     */
+    private static final class CSVDataParser implements CSVDataCache.Parser<CSVData>, CSVSnapshotStore.Format<CSVData> {
+        private static final byte DICTIONARY_COLUMN = 0;
+        private static final byte PLAIN_COLUMN = 1;
+
+        @Override
+        @NotNull
+        public CSVData parse(@NotNull LoadedContent content, @NotNull String separator) throws IOException {
+            return new CSVData(content, separator);
+        }
+
+        @Override
+        public void write(@NotNull CSVData csvData, @NotNull DataOutputStream out) throws IOException {
+            out.writeLong(csvData.timestamp.getTime());
+            out.writeInt(csvData.rowCount);
+            out.writeInt(csvData.columns.length);
+            for (int rowLength : csvData.rowLengths) {
+                out.writeInt(rowLength);
+            }
+            for (Column column : csvData.columns) {
+                if (column instanceof DictionaryColumn) {
+                    DictionaryColumn dictionaryColumn = (DictionaryColumn) column;
+                    out.writeByte(DICTIONARY_COLUMN);
+                    writeStrings(out, dictionaryColumn.dictionary);
+                    for (int code : dictionaryColumn.codes) {
+                        out.writeInt(code);
+                    }
+                } else {
+                    out.writeByte(PLAIN_COLUMN);
+                    writeStrings(out, ((PlainColumn) column).values);
+                }
+            }
+        }
+
+        private static void writeStrings(@NotNull DataOutputStream out, @NotNull String[] strings) throws IOException {
+            byte[][] encoded = new byte[strings.length][];
+            out.writeInt(strings.length);
+            int offset = 0;
+            out.writeInt(offset);
+            for (int i = 0; i < strings.length; i++) {
+                encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+                offset += encoded[i].length;
+                out.writeInt(offset);
+            }
+            for (byte[] bytes : encoded) {
+                out.write(bytes);
+            }
+        }
+
+        @Override
+        @NotNull
+        public CSVData read(@NotNull ByteBuffer in) throws IOException {
+            Date timestamp = new Date(in.getLong());
+            int rowCount = in.getInt();
+            Column[] columns = new Column[in.getInt()];
+            // limits might have been lowered since the snapshot was stored
+            CSVLimits.INSTANCE.checkRows(rowCount - 1);
+            CSVLimits.INSTANCE.checkColumns(columns.length);
+            int[] rowLengths = readInts(in, rowCount);
+            for (int i = 0; i < columns.length; i++) {
+                byte kind = in.get();
+                String[] strings = readStrings(in);
+                if (kind == DICTIONARY_COLUMN) {
+                    int[] codes = readInts(in, rowCount);
+                    for (int code : codes) {
+                        if (code < 0 || code >= strings.length) {
+                            throw new IOException("Corrupted snapshot");
+                        }
+                    }
+                    columns[i] = new DictionaryColumn(strings, codes);
+                } else if (kind == PLAIN_COLUMN && strings.length == rowCount) {
+                    columns[i] = new PlainColumn(strings);
+                } else {
+                    throw new IOException("Corrupted snapshot");
+                }
+            }
+            for (int rowLength : rowLengths) {
+                if (rowLength < 0 || rowLength > columns.length) {
+                    throw new IOException("Corrupted snapshot");
+                }
+            }
+            return new CSVData(rowCount, rowLengths, columns, timestamp);
+        }
+
+        private static @NotNull String[] readStrings(@NotNull ByteBuffer in) {
+            int[] offsets = readInts(in, in.getInt() + 1);
+            String[] strings = new String[offsets.length - 1];
+            byte[] bytes = new byte[offsets[strings.length]];
+            in.get(bytes);
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = new String(bytes, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+            }
+            return strings;
+        }
+
+        private static @NotNull int[] readInts(@NotNull ByteBuffer in, int count) {
+            int[] result = new int[count];
+            in.asIntBuffer().get(result);
+            in.position(in.position() + 4 * count);
+            return result;
+        }
+    }
 
-    private CSVData(String dataLocation, String separator) throws IOException {
-        List<String[]> dataList = new ArrayList<>();
-        LoadedContent loadedContent = Utils.loadContent(dataLocation);
+    private CSVData(@NotNull LoadedContent loadedContent, @NotNull String separator) throws IOException {
         timestamp = loadedContent.timestamp;
-        try (BufferedReader r = new BufferedReader(new InputStreamReader(loadedContent.content, StandardCharsets.UTF_8))) {
-            String line;
-            while ((line = r.readLine()) != null) {
-                String[] row = line.split(Pattern.quote(separator));
-                dataList.add(row);
+        List<ColumnBuilder> builders = new ArrayList<>();
+        int[] lengths = new int[16];
+        int rows = 0;
+        CSVLimits limits = CSVLimits.INSTANCE;
+        try (CSVTokenizer tokenizer = new CSVTokenizer(new InputStreamReader(limits.limit(loadedContent.content), StandardCharsets.UTF_8), separator)) {
+            while (tokenizer.next()) {
+                int length = tokenizer.getFieldCountWithoutTrailingEmpty();
+                limits.checkColumns(length);
+                while (builders.size() < length) {
+                    builders.add(new ColumnBuilder(rows));
+                }
+                for (int i = 0; i < builders.size(); i++) {
+                    builders.get(i).add((i < length) ? tokenizer.getField(i) : "");
+                }
+                if (rows == lengths.length) {
+                    lengths = Arrays.copyOf(lengths, 2 * rows);
+                }
+                lengths[rows++] = length;
+                // the header is not counted
+                limits.checkRows(rows - 1);
             }
         }
-        data = dataList.toArray(new String[0][]);
+        CSVWidgetMetrics.INSTANCE.addParsedRows(rows);
+        rowCount = rows;
+        rowLengths = Arrays.copyOf(lengths, rows);
+        columns = new Column[builders.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = builders.get(i).build();
+        }
+    }
+
+    private CSVData(int rowCount, @NotNull int[] rowLengths, @NotNull Column[] columns, @NotNull Date timestamp) {
+        this.rowCount = rowCount;
+        this.rowLengths = rowLengths;
+        this.columns = columns;
+        this.timestamp = timestamp;
+    }
+
+    private static @NotNull CSVTokenizer createTokenizer(@NotNull LoadedContent loadedContent, @NotNull String separator) {
+        return new CSVTokenizer(new InputStreamReader(loadedContent.content, StandardCharsets.UTF_8), separator);
+    }
+
+    /**
+     * Trailing empty fields are ignored (as they always were when records were split by the separator).
+     */
+    private static @NotNull String[] readRow(@NotNull CSVTokenizer tokenizer) {
+        String[] row = new String[tokenizer.getFieldCountWithoutTrailingEmpty()];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = tokenizer.getField(i);
+        }
+        return row;
     }
 
-    private CSVData(CompositeParameter parameter) throws IOException, RequiredParameterException {
-        this(Utils.getRequiredStringParameterValue(parameter, PARAM_DATA_LOCATION), Utils.getRequiredStringParameterValue(parameter, PARAM_FIELD_SEPARATOR));
+    @Override
+    public long estimatedSize() {
+        long size = 48 + 4L * rowLengths.length + 4L * columns.length;
+        for (Column column : columns) {
+            size += column.estimatedSize();
+        }
+        for (int[] rows : sortedRows.values()) {
+            size += 16 + 4L * rows.length;
+        }
+        return size;
+    }
+
+    /**
+     * Fields of given row (the strings are shared with the dictionaries, only the array is created).
+     */
+    private @NotNull String[] getRow(int row) {
+        String[] result = new String[rowLengths[row]];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = columns[i].get(row);
+        }
+        return result;
+    }
+
+    private @NotNull String getCell(int row, int column) {
+        return (column < columns.length) ? columns[column].get(row) : "";
     }
 
     public @NotNull String[] getHeader() {
-        return (data.length > 0) ? data[0] : new String[0];
+        return (rowCount > 0) ? getRow(0) : new String[0];
     }
 
     public @NotNull Date getTimestamp() {
@@ -76,16 +398,221 @@ public class CSVData {
     }
 
     public void visit(@NotNull Visitor visitor) {
-        for (int i = 0; i < data.length; i++) {
-            visitor.visit(i, data[i]);
+        for (int i = 0; i < rowCount; i++) {
+            visitor.visit(i, getRow(i));
+        }
+    }
+
+    private int visit(@NotNull CSVTableQuery query, int firstRow, int maxRows, @NotNull Visitor visitor) throws IOException {
+        if (rowCount == 0) {
+            return 0;
+        }
+        String[] header = getRow(0);
+        CSVTableQuery.Bound bound = query.bind(header);
+        visitor.visit(0, bound.project(header));
+        boolean[][] matchingCodes = getMatchingCodes(bound);
+        int[] order = (bound.getSortIndex() >= 0) ? getSortedRows(bound.getSortIndex(), bound.isDescending()) : null;
+        int rowNum = 0;
+        for (int i = 1; i < rowCount; i++) {
+            int row = (order == null) ? i : order[i - 1];
+            if (matches(bound, matchingCodes, row)) {
+                rowNum++;
+                if (isVisible(rowNum, firstRow, maxRows)) {
+                    visitor.visit(rowNum, bound.project(getRow(row)));
+                }
+            }
+        }
+        return rowNum;
+    }
+
+    /**
+     * Filters on dictionary encoded columns are evaluated just once for every distinct value.
+     *
+     * @return for every filter matching dictionary codes of its column (<code>null</code> if the column is not dictionary encoded)
+     */
+    private @NotNull boolean[][] getMatchingCodes(@NotNull CSVTableQuery.Bound bound) {
+        boolean[][] result = new boolean[bound.getFilterCount()][];
+        for (int i = 0; i < result.length; i++) {
+            int column = bound.getFilterColumn(i);
+            if (column < columns.length && columns[column] instanceof DictionaryColumn) {
+                String[] dictionary = ((DictionaryColumn) columns[column]).dictionary;
+                result[i] = new boolean[dictionary.length];
+                for (int code = 0; code < dictionary.length; code++) {
+                    result[i][code] = bound.matchesFilter(i, dictionary[code]);
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean matches(@NotNull CSVTableQuery.Bound bound, @NotNull boolean[][] matchingCodes, int row) {
+        for (int i = 0; i < matchingCodes.length; i++) {
+            int column = bound.getFilterColumn(i);
+            boolean matches;
+            if (matchingCodes[i] != null) {
+                matches = matchingCodes[i][((DictionaryColumn) columns[column]).codes[row]];
+            } else {
+                matches = bound.matchesFilter(i, getCell(row, column));
+            }
+            if (!matches) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indexes of all rows (without the header) ordered by given column, rows with equal values keep their order from the file.
+     * The order is computed once per column and direction and kept with the cached data.
+     */
+    private @NotNull int[] getSortedRows(int column, boolean descending) {
+        String key = column + (descending ? ":desc" : ":asc");
+        int[] result = sortedRows.get(key);
+        if (result == null) {
+            result = sortRows(column, descending);
+            int[] concurrent = sortedRows.putIfAbsent(key, result);
+            if (concurrent != null) {
+                result = concurrent;
+            } else {
+                CSVDataCache.INSTANCE.grown(this, 16 + 4L * result.length);
+            }
+        }
+        return result;
+    }
+
+    private interface RowComparator {
+        int compare(int row1, int row2);
+    }
+
+    /**
+     * Column containing only numbers (and empty cells) is sorted numerically, otherwise cells are compared as strings.
+     * Empty cells go first in ascending order. Values of dictionary encoded column are compared only once to rank
+     * the dictionary, rows are then ordered by ranks of their codes.
+     */
+    private @NotNull int[] sortRows(final int column, final boolean descending) {
+        int[] rows = new int[rowCount - 1];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i + 1;
+        }
+        if (column >= columns.length) {
+            return rows;
+        }
+        final Column sorted = columns[column];
+        final String[] values = (sorted instanceof DictionaryColumn) ? ((DictionaryColumn) sorted).dictionary : ((PlainColumn) sorted).values;
+        final double[] numbers = getNumbers(values, (sorted instanceof DictionaryColumn) ? getUsedCodes((DictionaryColumn) sorted) : null);
+        RowComparator valueComparator = new RowComparator() {
+            @Override
+            public int compare(int value1, int value2) {
+                int result;
+                if (numbers != null) {
+                    result = compareNumbers(numbers[value1], numbers[value2]);
+                } else {
+                    result = values[value1].compareTo(values[value2]);
+                }
+                return descending ? -result : result;
+            }
+        };
+        if (sorted instanceof DictionaryColumn) {
+            final int[] codes = ((DictionaryColumn) sorted).codes;
+            final int[] ranks = rank(values.length, valueComparator);
+            sort(rows, new int[rows.length], 0, rows.length, new RowComparator() {
+                @Override
+                public int compare(int row1, int row2) {
+                    return ranks[codes[row1]] - ranks[codes[row2]];
+                }
+            });
+        } else {
+            sort(rows, new int[rows.length], 0, rows.length, valueComparator);
+        }
+        return rows;
+    }
+
+    /**
+     * @return rank of every value, equal values have equal rank
+     */
+    private static @NotNull int[] rank(int count, @NotNull RowComparator comparator) {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        sort(order, new int[count], 0, count, comparator);
+        int[] ranks = new int[count];
+        for (int i = 1; i < count; i++) {
+            ranks[order[i]] = ranks[order[i - 1]] + ((comparator.compare(order[i - 1], order[i]) < 0) ? 1 : 0);
+        }
+        return ranks;
+    }
+
+    /**
+     * @return which dictionary values are used by the rows (the header is not counted)
+     */
+    private @NotNull boolean[] getUsedCodes(@NotNull DictionaryColumn column) {
+        boolean[] used = new boolean[column.dictionary.length];
+        for (int row = 1; row < rowCount; row++) {
+            used[column.codes[row]] = true;
+        }
+        return used;
+    }
+
+    /**
+     * @param used values to check (<code>null</code> to check all values but the header)
+     * @return numeric values ({@link Double#NaN} for empty cells) or <code>null</code> if some checked value is not a number
+     */
+    private static @Nullable double[] getNumbers(@NotNull String[] values, @Nullable boolean[] used) {
+        double[] numbers = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            numbers[i] = CSVTableQuery.parseNumber(values[i]);
+            boolean checked = (used == null) ? i > 0 : used[i];
+            if (checked && Double.isNaN(numbers[i]) && !values[i].isEmpty()) {
+                return null;
+            }
+        }
+        return numbers;
+    }
+
+    private static int compareNumbers(double number1, double number2) {
+        if (Double.isNaN(number1) || Double.isNaN(number2)) {
+            return (Double.isNaN(number1) ? 0 : 1) - (Double.isNaN(number2) ? 0 : 1);
+        }
+        return Double.compare(number1, number2);
+    }
+
+    /**
+     * Stable merge sort of primitive row indexes (avoids boxing and copying of rows).
+     */
+    private static void sort(@NotNull int[] rows, @NotNull int[] buffer, int from, int to, @NotNull RowComparator comparator) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(rows, buffer, from, middle, comparator);
+        sort(rows, buffer, middle, to, comparator);
+        if (comparator.compare(rows[middle - 1], rows[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(rows, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && comparator.compare(buffer[left], buffer[right]) <= 0)) {
+                rows[i] = buffer[left++];
+            } else {
+                rows[i] = buffer[right++];
+            }
         }
     }
 
+    private static boolean isVisible(int rowNum, int firstRow, int maxRows) {
+        return rowNum == 0 || (rowNum >= firstRow && (maxRows < 0 || rowNum - firstRow < maxRows));
+    }
+
     private static final String PARAM_DATA_SOURCE = "dataSource";
     private static final String PARAM_DATA_LOCATION = "dataLocation";
     private static final String PARAM_FIELD_SEPARATOR = "fieldSeparator";
     private static final String PARAM_ADDITIONAL_DATA_SOURCES = "additionalDataSources";
     private static final String PARAM_NAME = "name";
+    private static final String PARAM_LOAD_TIMEOUT = "loadTimeout";
+    private static final int DEFAULT_LOAD_TIMEOUT = 60;
 
     private static @NotNull CompositeParameter buildParameter(@NotNull ParameterFactory factory, boolean withName) {
         Builder parameter = factory.composite("Data Source");
@@ -104,24 +631,272 @@ public class CSVData {
 
     public static void addAdditionalParameter(@NotNull StrictMap<String, RichPageParameter> parameters, @NotNull ParameterFactory factory) {
         parameters.put(PARAM_ADDITIONAL_DATA_SOURCES, factory.multi("Additional Data Sources", buildParameter(factory, true)).build());
+        parameters.put(PARAM_LOAD_TIMEOUT, factory.string("Load Timeout (seconds)").value(String.valueOf(DEFAULT_LOAD_TIMEOUT)).build());
     }
 
     public static @NotNull CSVData get(@NotNull RichPageWidgetRenderingContext context) throws IOException, RequiredParameterException {
-        return new CSVData((CompositeParameter) context.parameter(PARAM_DATA_SOURCE));
+        return load((CompositeParameter) context.parameter(PARAM_DATA_SOURCE), CSVData.class, PARSER);
+    }
+
+    /**
+     * @return location of the main data source or <code>null</code> if it is not set
+     */
+    static @Nullable String getDataLocation(@NotNull RichPageWidgetRenderingContext context) {
+        return Utils.getStringParameterValue((CompositeParameter) context.parameter(PARAM_DATA_SOURCE), PARAM_DATA_LOCATION);
+    }
+
+    /**
+     * Visits the header (row number 0) and given window of rows (numbered from 1, by their position in the result) selected
+     * by given query from the main data source. The file is loaded through {@link CSVDataCache}, only if it exceeds
+     * {@link CSVLimits}, it is streamed through the parser in file order (a warning is added for sorted query), just
+     * the visited rows are converted to strings and at most the row limit of them is visited (a warning is added when
+     * some rows are left out).
+     *
+     * @param maxRows maximum number of visited rows (without the header), negative for all rows
+     * @param warnings collects problems which did not prevent visiting the rows
+     * @param timer the load phase is ended once the data is available (for streamed files it gets just the time spent reading them),
+     *            visiting is measured as the aggregate phase
+     * @return total number of rows matching the query
+     */
+    static int visit(@NotNull RichPageWidgetRenderingContext context, @NotNull CSVTableQuery query, int firstRow, int maxRows, @NotNull Visitor visitor,
+            @NotNull List<String> warnings, @NotNull CSVWidgetMetrics.Timer timer) throws IOException, RequiredParameterException {
+        CompositeParameter parameter = context.parameter(PARAM_DATA_SOURCE);
+        String exceeded;
+        try {
+            CSVData data = load(parameter, CSVData.class, PARSER);
+            timer.end(CSVWidgetMetrics.Phase.load);
+            int result = data.visit(query, firstRow, maxRows, visitor);
+            timer.end(CSVWidgetMetrics.Phase.aggregate);
+            return result;
+        } catch (CSVLimits.LimitExceededException e) {
+            exceeded = e.getMessage();
+            if (query.isSorted()) {
+                warnings.add(exceeded + ", rows are shown in the order of the file.");
+            }
+        }
+        timer.end(CSVWidgetMetrics.Phase.load);
+        String dataLocation = Utils.getRequiredStringParameterValue(parameter, PARAM_DATA_LOCATION);
+        String separator = Utils.getRequiredStringParameterValue(parameter, PARAM_FIELD_SEPARATOR);
+        ResourceInfo info = Utils.getResourceInfo(dataLocation);
+        LoadedContent content = CSVWidgetMetrics.INSTANCE.load(info);
+        try (CSVTokenizer tokenizer = createTokenizer(content, separator)) {
+            if (!tokenizer.next()) {
+                return 0;
+            }
+            String[] header = readRow(tokenizer);
+            CSVTableQuery.Bound bound = query.bind(header);
+            visitor.visit(0, bound.project(header));
+            int visibleRows = CSVLimits.INSTANCE.capRows(maxRows);
+            boolean capped = false;
+            int rowNum = 0;
+            while (tokenizer.next()) {
+                if (bound.matches(tokenizer)) {
+                    rowNum++;
+                    if (isVisible(rowNum, firstRow, visibleRows)) {
+                        String[] row = bound.project(tokenizer);
+                        visitor.visit(rowNum, (row != null) ? row : readRow(tokenizer));
+                    } else if (isVisible(rowNum, firstRow, maxRows)) {
+                        capped = true;
+                    }
+                }
+            }
+            if (capped) {
+                warnings.add(exceeded + ", only " + visibleRows + " rows are shown.");
+            }
+            return rowNum;
+        } finally {
+            // reading of the stream interleaves with filtering
+            timer.end(CSVWidgetMetrics.Phase.aggregate);
+            timer.move(CSVWidgetMetrics.getReadNanos(content), CSVWidgetMetrics.Phase.aggregate, CSVWidgetMetrics.Phase.load);
+        }
     }
 
     public static @NotNull Map<String, CSVData> getAll(@NotNull RichPageWidgetRenderingContext context) throws IOException, RequiredParameterException {
-        Map<String, CSVData> allData = new HashMap<>();
-        CSVData defaultData = new CSVData((CompositeParameter) context.parameter(PARAM_DATA_SOURCE));
-        allData.put(null, defaultData);
+        return getAll(context, CSVData.class, PARSER);
+    }
+
+    /**
+     * Returns numeric representation of the main and all additional data sources, the main data source is stored under <code>null</code> key.
+     * Data sources exceeding {@link CSVLimits} are streamed and only their rows with dates in given (inclusive) range are kept,
+     * up to the limits (a warning is added when some rows are left out).
+     *
+     * @param warnings collects problems which did not prevent loading the data
+     */
+    static @NotNull Map<String, CSVNumericData> getAllNumeric(@NotNull DataSources dataSources, final long fromDay, final long toDay, @NotNull List<String> warnings)
+            throws IOException {
+        final List<String> synchronizedWarnings = Collections.synchronizedList(warnings);
+        return getAll(dataSources, new Loader<CSVNumericData>() {
+            @Override
+            @NotNull
+            public CSVNumericData load(@NotNull String dataLocation, @Nullable String baseline, @NotNull String separator) throws IOException {
+                try {
+                    return getCached(dataLocation, baseline, separator, CSVNumericData.class, CSVNumericData.PARSER);
+                } catch (CSVLimits.LimitExceededException e) {
+                    synchronizedWarnings.add(dataLocation + ": " + e.getMessage() + ", only rows within the shown dates are read.");
+                    ResourceInfo info = Utils.getResourceInfo(dataLocation, baseline);
+                    CSVNumericData window = CSVNumericData.parseWindow(CSVWidgetMetrics.INSTANCE.load(info), separator, fromDay, toDay);
+                    if (window.isTruncated()) {
+                        synchronizedWarnings.add(dataLocation + ": rows within the shown dates exceed the limits too, later rows of the file are not shown.");
+                    }
+                    return window;
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds data source parameters and current revisions of the files (only resource properties are read) to given key.
+     */
+    static void addToKey(@NotNull CSVHtmlCache.Key key, @NotNull RichPageWidgetRenderingContext context, boolean withAdditional) throws RequiredParameterException {
+        addToKey(key, (CompositeParameter) context.parameter(PARAM_DATA_SOURCE));
+        if (withAdditional) {
+            MultiParameter<CompositeParameter> additionalParameters = context.parameter(PARAM_ADDITIONAL_DATA_SOURCES);
+            for (CompositeParameter additionalParameter : additionalParameters.get()) {
+                if (Utils.atLeastOneParameterIsSet(additionalParameter, PARAM_NAME, PARAM_DATA_LOCATION)) {
+                    key.add(Utils.getRequiredStringParameterValue(additionalParameter, PARAM_NAME));
+                    addToKey(key, additionalParameter);
+                }
+            }
+        }
+    }
+
+    private static void addToKey(@NotNull CSVHtmlCache.Key key, @NotNull CompositeParameter parameter) throws RequiredParameterException {
+        String dataLocation = Utils.getRequiredStringParameterValue(parameter, PARAM_DATA_LOCATION);
+        String separator = Utils.getRequiredStringParameterValue(parameter, PARAM_FIELD_SEPARATOR);
+        key.add(separator).add(Utils.getResourceInfo(dataLocation));
+    }
+
+    /**
+     * Loads one data source, may be called from other than the request thread.
+     */
+    private interface Loader<T> {
+        @NotNull
+        T load(@NotNull String dataLocation, @Nullable String baseline, @NotNull String separator) throws IOException;
+    }
+
+    private static @NotNull <T extends CSVDataCache.Cacheable> Map<String, T> getAll(@NotNull RichPageWidgetRenderingContext context, final @NotNull Class<T> type,
+            final @NotNull CSVDataCache.Parser<T> parser) throws IOException, RequiredParameterException {
+        return getAll(getDataSources(context), new Loader<T>() {
+            @Override
+            @NotNull
+            public T load(@NotNull String dataLocation, @Nullable String baseline, @NotNull String separator) throws IOException {
+                return getCached(dataLocation, baseline, separator, type, parser);
+            }
+        });
+    }
+
+    static final class DataSource {
+        /**
+         * <code>null</code> for the main data source.
+         */
+        final @Nullable String name;
+        final @NotNull String dataLocation;
+        final @NotNull String separator;
+
+        DataSource(@Nullable String name, @NotNull String dataLocation, @NotNull String separator) {
+            this.name = name;
+            this.dataLocation = dataLocation;
+            this.separator = separator;
+        }
+    }
+
+    /**
+     * Main and additional data sources of a widget resolved from its parameters together with the current baseline,
+     * so they can be loaded outside of the rendering (e.g. in other threads or later requests).
+     */
+    static final class DataSources {
+        final @NotNull List<DataSource> sources;
+        final @Nullable String baseline;
+        final int loadTimeout;
+
+        DataSources(@NotNull List<DataSource> sources, @Nullable String baseline, int loadTimeout) {
+            this.sources = sources;
+            this.baseline = baseline;
+            this.loadTimeout = loadTimeout;
+        }
+
+        /**
+         * @param name <code>null</code> for the main data source
+         */
+        @Nullable
+        DataSource get(@Nullable String name) {
+            for (DataSource source : sources) {
+                if ((name == null) ? source.name == null : name.equals(source.name)) {
+                    return source;
+                }
+            }
+            return null;
+        }
+    }
+
+    static @NotNull DataSources getDataSources(@NotNull RichPageWidgetRenderingContext context) throws RequiredParameterException {
+        List<DataSource> sources = new ArrayList<>();
+        sources.add(getDataSource(null, (CompositeParameter) context.parameter(PARAM_DATA_SOURCE)));
         MultiParameter<CompositeParameter> additionalParameters = context.parameter(PARAM_ADDITIONAL_DATA_SOURCES);
         for (CompositeParameter additionalParameter : additionalParameters.get()) {
             if (Utils.atLeastOneParameterIsSet(additionalParameter, PARAM_NAME, PARAM_DATA_LOCATION)) {
-                String name = Utils.getRequiredStringParameterValue(additionalParameter, PARAM_NAME);
-                allData.put(name, new CSVData(additionalParameter));
+                sources.add(getDataSource(Utils.getRequiredStringParameterValue(additionalParameter, PARAM_NAME), additionalParameter));
+            }
+        }
+        return new DataSources(sources, Utils.getCurrentBaseline(), getLoadTimeout(context));
+    }
+
+    private static @NotNull DataSource getDataSource(@Nullable String name, @NotNull CompositeParameter parameter) throws RequiredParameterException {
+        String dataLocation = Utils.getRequiredStringParameterValue(parameter, PARAM_DATA_LOCATION);
+        String separator = Utils.getRequiredStringParameterValue(parameter, PARAM_FIELD_SEPARATOR);
+        return new DataSource(name, dataLocation, separator);
+    }
+
+    private static @NotNull <T> Map<String, T> getAll(@NotNull DataSources dataSources, @NotNull Loader<T> loader) throws IOException {
+        // loading itself may run in other threads
+        Map<String, Callable<T>> tasks = new LinkedHashMap<>();
+        for (DataSource source : dataSources.sources) {
+            tasks.put(source.name, loadTask(source, dataSources.baseline, loader));
+        }
+        return CSVLoadExecutor.loadAll(tasks, dataSources.loadTimeout);
+    }
+
+    /**
+     * @return the configured timeout or the default one if it is not a positive number
+     */
+    private static int getLoadTimeout(@NotNull RichPageWidgetRenderingContext context) {
+        String timeout = Utils.getStringParameterValue(context, PARAM_LOAD_TIMEOUT);
+        if (timeout != null) {
+            try {
+                int result = Integer.parseInt(timeout.trim());
+                if (result > 0) {
+                    return result;
+                }
+            } catch (NumberFormatException e) {
+                // default
             }
         }
-        return allData;
+        return DEFAULT_LOAD_TIMEOUT;
+    }
+
+    private static @NotNull <T> Callable<T> loadTask(final @NotNull DataSource source, final @Nullable String baseline, final @NotNull Loader<T> loader) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws IOException {
+                return loader.load(source.dataLocation, baseline, source.separator);
+            }
+        };
+    }
+
+    private static @NotNull <T extends CSVDataCache.Cacheable> T load(@NotNull CompositeParameter parameter, @NotNull Class<T> type, @NotNull CSVDataCache.Parser<T> parser)
+            throws IOException, RequiredParameterException {
+        String dataLocation = Utils.getRequiredStringParameterValue(parameter, PARAM_DATA_LOCATION);
+        String separator = Utils.getRequiredStringParameterValue(parameter, PARAM_FIELD_SEPARATOR);
+        return getCached(dataLocation, Utils.getCurrentBaseline(), separator, type, parser);
+    }
+
+    /**
+     * Gets the data from the cache and lets {@link CSVPrecomputeScheduler} prepare its next revisions.
+     */
+    private static @NotNull <T extends CSVDataCache.Cacheable> T getCached(@NotNull String dataLocation, @Nullable String baseline, @NotNull String separator,
+            @NotNull Class<T> type, @NotNull CSVDataCache.Parser<T> parser) throws IOException {
+        CSVPrecomputeScheduler.watch(dataLocation, baseline, separator, type, parser);
+        return CSVDataCache.INSTANCE.get(dataLocation, baseline, separator, type, parser);
     }
 
 }
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.alm.extensions.widgets.common.Utils;
+import com.polarion.alm.extensions.widgets.common.Utils.LoadedContent;
+import com.polarion.alm.extensions.widgets.common.Utils.ResourceInfo;
+
+/**
+ * Process-wide LRU cache of parsed CSV files bounded by the estimated size of the cached data.
+ * Entries are keyed by type of the parsed representation, data location, separator, baseline and revision,
+ * so a new revision of the file (or a different baseline) never sees stale data.
+ * Data of types supporting it are also stored to and loaded from binary snapshots (see {@link CSVSnapshotStore}) on a cache miss.
+ * Concurrent misses of the same revision share a single load.
+ */
+@SuppressWarnings("nls")
+final class CSVDataCache {
+
+    static final String PROPERTY_MAX_BYTES = "com.polarion.alm.extensions.widgets.csv.cacheMaxBytes";
+    private static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024;
+
+    static final CSVDataCache INSTANCE = new CSVDataCache(Long.getLong(PROPERTY_MAX_BYTES, DEFAULT_MAX_BYTES), CSVSnapshotStore.INSTANCE);
+
+    interface Cacheable {
+        /**
+         * Rough estimate of the retained heap size in bytes (assuming compressed references).
+         */
+        long estimatedSize();
+    }
+
+    /**
+     * Data that can be cheaply extended when a new revision of the file only appends records.
+     */
+    interface Incremental extends Cacheable {
+        /**
+         * @return <code>false</code> if new records cannot be appended to this instance at all (then the new content is not even read)
+         */
+        boolean isAppendable();
+
+        /**
+         * @param content closed by the caller
+         * @return new instance with records appended in given content or <code>null</code> if given content does not start
+         *         with exactly the content this instance was parsed from (then it has to be parsed from scratch)
+         */
+        @Nullable
+        Cacheable append(@NotNull LoadedContent content) throws IOException;
+    }
+
+    interface Parser<T extends Cacheable> {
+        @NotNull
+        T parse(@NotNull LoadedContent content, @NotNull String separator) throws IOException;
+    }
+
+    /**
+     * Cached instead of data of a revision which exceeds {@link CSVLimits}, so the file is not parsed again just to find it out.
+     */
+    private static final class Oversized implements Cacheable {
+        final @NotNull String message;
+
+        Oversized(@NotNull String message) {
+            this.message = message;
+        }
+
+        @Override
+        public long estimatedSize() {
+            return 64 + 2L * message.length();
+        }
+    }
+
+    private static final class Entry {
+        final @NotNull Cacheable data;
+        long size;
+
+        Entry(@NotNull Cacheable data, long size) {
+            this.data = data;
+            this.size = size;
+        }
+    }
+
+    private final long maxBytes;
+    private final @Nullable CSVSnapshotStore snapshots;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The same entries by the cached instance, so data growing after it was stored can report it (see {@link #grown(Cacheable, long)}).
+     */
+    private final Map<Cacheable, Entry> entriesByData = new IdentityHashMap<>();
+    /**
+     * Key of the most recently loaded revision for every file (key without the revision).
+     */
+    private final Map<String, String> latestKeys = new HashMap<>();
+    private long currentBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    /**
+     * Loads in progress by the cache key.
+     */
+    private final ConcurrentMap<String, FutureTask<Cacheable>> loading = new ConcurrentHashMap<>();
+
+    CSVDataCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * @param snapshots store for binary snapshots of data whose parser also implements {@link CSVSnapshotStore.Format}
+     */
+    CSVDataCache(long maxBytes, @Nullable CSVSnapshotStore snapshots) {
+        this.maxBytes = maxBytes;
+        this.snapshots = snapshots;
+    }
+
+    static @NotNull String key(@NotNull Class<?> type, @NotNull ResourceInfo info, @NotNull String separator) {
+        return fileKey(type, info, separator) + "\n" + info.revision;
+    }
+
+    private static @NotNull String fileKey(@NotNull Class<?> type, @NotNull ResourceInfo info, @NotNull String separator) {
+        return type.getSimpleName() + "\n" + info.dataLocation + "\n" + separator + "\n" + info.baseline;
+    }
+
+    /**
+     * Returns parsed data for the current revision of given file (in given baseline), the file is read and parsed only if it is not cached yet.
+     *
+     * @throws CSVLimits.LimitExceededException if the file is too large to be parsed into memory (also when it was found out by some previous call)
+     */
+    @NotNull
+    <T extends Cacheable> T get(@NotNull String dataLocation, @Nullable String baseline, @NotNull String separator, @NotNull Class<T> type, @NotNull Parser<T> parser)
+            throws IOException {
+        ResourceInfo info = Utils.getResourceInfo(dataLocation, baseline);
+        String key = key(type, info, separator);
+        Cacheable cached = get(key);
+        if (cached == null) {
+            cached = loadOnce(key, info, separator, type, parser);
+        }
+        if (cached instanceof Oversized) {
+            throw new CSVLimits.LimitExceededException(((Oversized) cached).message);
+        }
+        return type.cast(cached);
+    }
+
+    /**
+     * Concurrent requests for the same revision (e.g. several widgets of one page showing the same file) wait for the first one,
+     * so the file is read and parsed just once.
+     */
+    private @NotNull <T extends Cacheable> Cacheable loadOnce(final @NotNull String key, final @NotNull ResourceInfo info, final @NotNull String separator,
+            final @NotNull Class<T> type, final @NotNull Parser<T> parser) throws IOException {
+        FutureTask<Cacheable> task = new FutureTask<>(new Callable<Cacheable>() {
+            @Override
+            public Cacheable call() throws IOException {
+                return load(key, info, separator, type, parser);
+            }
+        });
+        FutureTask<Cacheable> inFlight = loading.putIfAbsent(key, task);
+        if (inFlight == null) {
+            inFlight = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+        } else {
+            coalesced.incrementAndGet();
+        }
+        try {
+            return inFlight.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + info.dataLocation);
+        }
+    }
+
+    private @NotNull <T extends Cacheable> Cacheable load(@NotNull String key, @NotNull ResourceInfo info, @NotNull String separator, @NotNull Class<T> type,
+            @NotNull Parser<T> parser) throws IOException {
+        String fileKey = fileKey(type, info, separator);
+        T data;
+        try {
+            data = append(getLatest(fileKey), info, type);
+            if (data == null) {
+                data = loadSnapshot(fileKey, info, parser);
+                if (data == null) {
+                    LoadedContent content = CSVWidgetMetrics.INSTANCE.load(info);
+                    long start = System.nanoTime();
+                    data = parser.parse(content, separator);
+                    CSVWidgetMetrics.INSTANCE.parsed(System.nanoTime() - start, content);
+                    storeSnapshot(fileKey, info, data, parser);
+                }
+            } else {
+                storeSnapshot(fileKey, info, data, parser);
+            }
+        } catch (CSVLimits.LimitExceededException e) {
+            Oversized oversized = new Oversized(e.getMessage());
+            put(key, oversized);
+            return oversized;
+        }
+        put(key, data);
+        setLatest(fileKey, key);
+        return data;
+    }
+
+    @SuppressWarnings("unchecked")
+    private @Nullable <T extends Cacheable> T loadSnapshot(@NotNull String fileKey, @NotNull ResourceInfo info, @NotNull Parser<T> parser) {
+        if (snapshots == null || !(parser instanceof CSVSnapshotStore.Format)) {
+            return null;
+        }
+        return snapshots.load(fileKey, info.revision, (CSVSnapshotStore.Format<T>) parser);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Cacheable> void storeSnapshot(@NotNull String fileKey, @NotNull ResourceInfo info, @NotNull T data, @NotNull Parser<T> parser) {
+        if (snapshots != null && parser instanceof CSVSnapshotStore.Format) {
+            snapshots.store(fileKey, info.revision, data, (CSVSnapshotStore.Format<T>) parser);
+        }
+    }
+
+    private @Nullable <T extends Cacheable> T append(@Nullable Cacheable previous, @NotNull ResourceInfo info, @NotNull Class<T> type) throws IOException {
+        if (!(previous instanceof Incremental) || !((Incremental) previous).isAppendable()) {
+            return null;
+        }
+        LoadedContent content = CSVWidgetMetrics.INSTANCE.load(info);
+        Cacheable appended;
+        try (InputStream stream = content.content) {
+            appended = ((Incremental) previous).append(content);
+        }
+        if (appended == null) {
+            return null;
+        }
+        appends.incrementAndGet();
+        return type.cast(appended);
+    }
+
+    private synchronized @Nullable Cacheable getLatest(@NotNull String fileKey) {
+        String key = latestKeys.get(fileKey);
+        Entry entry = (key == null) ? null : entries.get(key);
+        return (entry == null) ? null : entry.data;
+    }
+
+    private synchronized void setLatest(@NotNull String fileKey, @NotNull String key) {
+        latestKeys.put(fileKey, key);
+    }
+
+    synchronized @Nullable Cacheable get(@NotNull String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.data;
+    }
+
+    synchronized void put(@NotNull String key, @NotNull Cacheable data) {
+        long size = data.estimatedSize();
+        if (size > maxBytes) {
+            return;
+        }
+        Entry entry = new Entry(data, size);
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            currentBytes -= previous.size;
+            entriesByData.remove(previous.data);
+        }
+        entriesByData.put(data, entry);
+        currentBytes += size;
+        evict(entry);
+    }
+
+    /**
+     * Called by cached data which grew after it was stored (e.g. by lazily computed aggregations), nothing happens if
+     * given instance is not cached.
+     *
+     * @param bytes estimated size of the added part
+     */
+    synchronized void grown(@NotNull Cacheable data, long bytes) {
+        Entry entry = entriesByData.get(data);
+        if (entry != null) {
+            entry.size += bytes;
+            currentBytes += bytes;
+            evict(entry);
+        }
+    }
+
+    private void evict(@NotNull Entry keep) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest != keep) {
+                currentBytes -= eldest.size;
+                iterator.remove();
+                entriesByData.remove(eldest.data);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        entriesByData.clear();
+        latestKeys.clear();
+        currentBytes = 0;
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Number of new revisions loaded by parsing only appended records.
+     */
+    long getAppends() {
+        return appends.get();
+    }
+
+    /**
+     * Number of requests which waited for a load of the same revision already in progress instead of loading it again.
+     */
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.util.Date;
+import java.util.Locale;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.alm.extensions.widgets.common.Utils;
+import com.polarion.alm.extensions.widgets.common.Utils.ResourceInfo;
+import com.polarion.alm.shared.api.model.rp.parameter.CompositeParameter;
+import com.polarion.alm.shared.api.model.rp.parameter.DateParameter;
+import com.polarion.alm.shared.api.model.rp.parameter.MultiParameter;
+import com.polarion.alm.shared.api.model.rp.parameter.RichPageParameter;
+import com.polarion.alm.shared.api.model.rp.parameter.StringParameter;
+import com.polarion.alm.shared.api.model.rp.widget.RichPageWidgetRenderingContext;
+
+/**
+ * Process-wide LRU cache of rendered widget HTML bounded by its size. Entries are keyed by a hash of everything the output
+ * depends on: widget parameters, revisions and timestamps of the data sources, column width, formatting locale and (for output
+ * using working days) version of the working calendar.
+ * <p>
+ * Only successfully rendered output is cached, warnings and errors are always rendered again.
+ */
+@SuppressWarnings("nls")
+final class CSVHtmlCache {
+
+    static final String PROPERTY_MAX_BYTES = "com.polarion.alm.extensions.widgets.csv.htmlCacheMaxBytes";
+    private static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+    static final CSVHtmlCache INSTANCE = new CSVHtmlCache(Long.getLong(PROPERTY_MAX_BYTES, DEFAULT_MAX_BYTES));
+
+    private static final class Html implements CSVDataCache.Cacheable {
+        final @NotNull String html;
+
+        Html(@NotNull String html) {
+            this.html = html;
+        }
+
+        @Override
+        public long estimatedSize() {
+            return 80 + 2L * html.length();
+        }
+    }
+
+    /**
+     * Collects inputs of one render, values are length-prefixed so that different inputs never produce the same key.
+     */
+    static final class Key {
+        private final @NotNull StringBuilder builder = new StringBuilder();
+
+        Key(@NotNull String widget, @NotNull RichPageWidgetRenderingContext context) {
+            add(widget);
+            add(String.valueOf(context.columnWidth()));
+            // numbers and dates are formatted in the format locale of the server, the rendering context has no user locale
+            add(Locale.getDefault(Locale.Category.FORMAT).toString());
+        }
+
+        @NotNull
+        Key add(@Nullable String value) {
+            if (value == null) {
+                builder.append("-;");
+            } else {
+                builder.append(value.length()).append(':').append(value).append(';');
+            }
+            return this;
+        }
+
+        @NotNull
+        Key add(@NotNull ResourceInfo info) {
+            add(info.dataLocation).add(info.baseline).add(info.revision);
+            return add(String.valueOf(info.timestamp.getTime()));
+        }
+
+        /**
+         * Adds value of given parameter, values of composite parameters (or composite parameters inside a multi parameter)
+         * are added for given child identifiers.
+         */
+        @NotNull
+        Key add(@NotNull RichPageParameter parameter, @NotNull String... childIds) {
+            if (parameter instanceof StringParameter) {
+                add(((StringParameter) parameter).value());
+            } else if (parameter instanceof DateParameter) {
+                Date date = ((DateParameter) parameter).value();
+                add((date == null) ? null : String.valueOf(date.getTime()));
+            } else if (parameter instanceof CompositeParameter) {
+                for (String childId : childIds) {
+                    add((RichPageParameter) ((CompositeParameter) parameter).get(childId));
+                }
+            } else if (parameter instanceof MultiParameter) {
+                MultiParameter<?> multi = (MultiParameter<?>) parameter;
+                add(String.valueOf(multi.get().size()));
+                for (RichPageParameter item : multi.get()) {
+                    add(item, childIds);
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported parameter " + parameter.label());
+            }
+            return this;
+        }
+
+        @NotNull
+        Key add(@NotNull RichPageWidgetRenderingContext context, @NotNull String id, @NotNull String... childIds) {
+            return add((RichPageParameter) context.parameter(id), childIds);
+        }
+
+        /**
+         * SHA-256 of collected values, so long texts in parameters do not make the cache keys long.
+         */
+        @NotNull
+        String hash() {
+            return Utils.sha256(builder.toString());
+        }
+    }
+
+    private final @NotNull CSVDataCache cache;
+
+    CSVHtmlCache(long maxBytes) {
+        cache = new CSVDataCache(maxBytes);
+    }
+
+    @Nullable
+    String get(@NotNull String key) {
+        CSVDataCache.Cacheable cached = cache.get(key);
+        return (cached == null) ? null : ((Html) cached).html;
+    }
+
+    void put(@NotNull String key, @NotNull String html) {
+        cache.put(key, new Html(html));
+    }
+
+    void clear() {
+        cache.clear();
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Limits of data sources which are parsed into memory as a whole, so a huge file cannot exhaust the heap of the server.
+ * Parsing of a file stops as soon as it exceeds some limit, widgets then fall back to reading the file as a stream.
+ * Non-positive limit means no limit.
+ */
+@SuppressWarnings("nls")
+final class CSVLimits {
+
+    static final String PROPERTY_MAX_BYTES = "com.polarion.alm.extensions.widgets.csv.maxBytes";
+    static final String PROPERTY_MAX_ROWS = "com.polarion.alm.extensions.widgets.csv.maxRows";
+    static final String PROPERTY_MAX_COLUMNS = "com.polarion.alm.extensions.widgets.csv.maxColumns";
+    private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    private static final long DEFAULT_MAX_ROWS = 2000000;
+    private static final long DEFAULT_MAX_COLUMNS = 1000;
+
+    static final CSVLimits INSTANCE = new CSVLimits(Long.getLong(PROPERTY_MAX_BYTES, DEFAULT_MAX_BYTES), Long.getLong(PROPERTY_MAX_ROWS, DEFAULT_MAX_ROWS),
+            Long.getLong(PROPERTY_MAX_COLUMNS, DEFAULT_MAX_COLUMNS));
+
+    static final class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LimitExceededException(@NotNull String message) {
+            super(message);
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxRows;
+    private final long maxColumns;
+
+    CSVLimits(long maxBytes, long maxRows, long maxColumns) {
+        this.maxBytes = maxBytes;
+        this.maxRows = maxRows;
+        this.maxColumns = maxColumns;
+    }
+
+    /**
+     * @return stream throwing {@link LimitExceededException} when more than the maximum number of bytes is read
+     */
+    @NotNull
+    InputStream limit(@NotNull InputStream content) {
+        if (maxBytes <= 0) {
+            return content;
+        }
+        return new FilterInputStream(content) {
+            private long count;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    count(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    count(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                count(skipped);
+                return skipped;
+            }
+
+            private void count(long read) throws LimitExceededException {
+                count += read;
+                if (count > maxBytes) {
+                    throw new LimitExceededException("Data source is larger than " + maxBytes + " bytes");
+                }
+            }
+        };
+    }
+
+    /**
+     * @param rows number of rows read so far (without the header)
+     */
+    void checkRows(long rows) throws LimitExceededException {
+        if (maxRows > 0 && rows > maxRows) {
+            throw new LimitExceededException("Data source has more than " + maxRows + " rows");
+        }
+    }
+
+    /**
+     * @param rows requested number of rows, negative for all rows
+     * @return requested number of rows reduced to the row limit (for files read as a stream)
+     */
+    int capRows(int rows) {
+        if (maxRows <= 0 || (rows >= 0 && rows <= maxRows)) {
+            return rows;
+        }
+        return (int) Math.min(maxRows, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param valuesPerRow number of 8-byte values kept for every row
+     * @return maximum number of rows kept in memory from a file read as a stream: at most the row limit and together
+     *         not more than the byte limit
+     */
+    int getMaxKeptRows(int valuesPerRow) {
+        long rows = (maxRows > 0) ? maxRows : Integer.MAX_VALUE;
+        if (maxBytes > 0) {
+            rows = Math.min(rows, maxBytes / (8L * Math.max(1, valuesPerRow)));
+        }
+        return (int) Math.min(rows, Integer.MAX_VALUE);
+    }
+
+    void checkColumns(long columns) throws LimitExceededException {
+        if (maxColumns > 0 && columns > maxColumns) {
+            throw new LimitExceededException("Data source has more than " + maxColumns + " columns");
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.polarion.platform.core.PlatformContext;
+import com.polarion.platform.security.ISecurityService;
+
+/**
+ * Loads several data sources concurrently on a small shared pool of daemon threads.
+ * <p>
+ * Tasks run as the user of the calling (request) thread. When the pool and its queue are full, tasks run in the calling thread,
+ * so rendering never waits for a free slot of the pool.
+ */
+@SuppressWarnings("nls")
+final class CSVLoadExecutor {
+
+    static final String PROPERTY_THREADS = "com.polarion.alm.extensions.widgets.csv.loadThreads";
+    private static final int DEFAULT_THREADS = 4;
+    private static final int QUEUE_CAPACITY = 100;
+
+    private static final ThreadPoolExecutor executor = createExecutor(Integer.getInteger(PROPERTY_THREADS, DEFAULT_THREADS));
+
+    private CSVLoadExecutor() {
+    }
+
+    private static @NotNull ThreadPoolExecutor createExecutor(int threads) {
+        ThreadPoolExecutor result = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CSV Widgets Loader " + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        result.allowCoreThreadTimeOut(true);
+        return result;
+    }
+
+    /**
+     * Runs all given tasks and returns their results in the same order as the tasks.
+     *
+     * @param timeoutSeconds maximum time to wait for all tasks
+     * @throws IOException when some task failed or did not finish in time (tasks not started yet are cancelled then, running tasks
+     *             are not interrupted as other callers may wait for the same load, see {@link CSVDataCache})
+     */
+    static @NotNull <T> Map<String, T> loadAll(@NotNull Map<String, Callable<T>> tasks, int timeoutSeconds) throws IOException {
+        Map<String, T> results = new LinkedHashMap<>();
+        Subject subject = getSecurityService().getCurrentSubject();
+        Map<String, Future<T>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, Callable<T>> task : tasks.entrySet()) {
+            futures.put(task.getKey(), executor.submit(asUser(subject, task.getValue())));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        String current = null;
+        try {
+            for (Map.Entry<String, Future<T>> future : futures.entrySet()) {
+                current = future.getKey();
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                results.put(current, future.getValue().get(remaining, TimeUnit.NANOSECONDS));
+            }
+            return results;
+        } catch (TimeoutException e) {
+            throw new IOException("Data source " + describe(current) + " was not loaded within " + timeoutSeconds + " seconds");
+        } catch (ExecutionException e) {
+            throw toIOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Loading of data source " + describe(current) + " was interrupted");
+        } finally {
+            for (Future<T> future : futures.values()) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static @NotNull String describe(String name) {
+        return (name == null) ? "'Data Source'" : "'" + name + "'";
+    }
+
+    private static @NotNull <T> Callable<T> asUser(final Subject subject, final @NotNull Callable<T> task) {
+        return new Callable<T>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public T call() throws Exception {
+                try {
+                    return (T) getSecurityService().doAsUser(subject, new PrivilegedExceptionAction<T>() {
+                        @Override
+                        public T run() throws Exception {
+                            return task.call();
+                        }
+                    });
+                } catch (PrivilegedActionException e) {
+                    throw e.getException();
+                }
+            }
+        };
+    }
+
+    private static @NotNull IOException toIOException(Throwable e) {
+        if (e instanceof IOException) {
+            return (IOException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IOException(e.getLocalizedMessage(), e);
+    }
+
+    private static @NotNull ISecurityService getSecurityService() {
+        return PlatformContext.getPlatform().lookupService(ISecurityService.class);
+    }
+
+}
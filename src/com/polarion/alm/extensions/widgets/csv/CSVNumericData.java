@@ -0,0 +1,911 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.alm.extensions.widgets.common.EpochDays;
+import com.polarion.alm.extensions.widgets.common.Utils.LoadedContent;
+import com.polarion.alm.extensions.widgets.csv.CSVBasedTrendChartWidgetRenderer.Aggregation;
+import com.polarion.alm.extensions.widgets.csv.CSVBasedTrendChartWidgetRenderer.Scale;
+import com.polarion.core.util.types.ThreadSafeDateFormatWrapper;
+
+/**
+ * Columnar representation of CSV file whose first field is date formatted as <code>yyyy-MM-dd</code> and other fields are
+ * (integer or decimal) numbers, empty fields are missing values.
+ * <p>
+ * Dates are stored as epoch days (see {@link EpochDays}) in one primitive array and every other column in its own primitive array
+ * of fixed-point numbers (see {@link NumberColumn}).
+ * Rows are sorted by date and there is at most one row per date: when the file contains the same date more than once,
+ * values from later records win (per column), exactly as when the records were merged into a map keyed by date.
+ * <p>
+ * When a new revision of the file just appends records with later dates (e.g. a nightly job adds a row per day),
+ * only the appended records are parsed and the arrays (including already computed rollups) are extended, see {@link #append(LoadedContent)}.
+ */
+@SuppressWarnings("nls")
+final class CSVNumericData implements CSVDataCache.Incremental {
+
+    static final CSVDataCache.Parser<CSVNumericData> PARSER = new NumericDataParser();
+
+    /**
+     * Snapshot consists of the state needed for appending, dates and a block for every column: its name, decimals, values
+     * and rows with values (if some are missing). Buckets and rollups are computed again on first use.
+     */
+    private static final class NumericDataParser implements CSVDataCache.Parser<CSVNumericData>, CSVSnapshotStore.Format<CSVNumericData> {
+        @Override
+        @NotNull
+        public CSVNumericData parse(@NotNull LoadedContent content, @NotNull String separator) throws IOException {
+            return new CSVNumericData(content, separator);
+        }
+
+        @Override
+        public void write(@NotNull CSVNumericData data, @NotNull DataOutputStream out) throws IOException {
+            out.writeLong(data.timestamp.getTime());
+            CSVSnapshotStore.writeString(out, data.separator);
+            out.writeInt(data.headerLength);
+            out.writeLong(data.contentLength);
+            out.writeLong(data.contentChecksum);
+            out.writeBoolean(data.endsWithLineBreak);
+            out.writeInt(data.days.length);
+            out.writeInt(data.columns.length);
+            for (long day : data.days) {
+                out.writeLong(day);
+            }
+            for (int i = 0; i < data.columns.length; i++) {
+                NumberColumn column = data.columns[i];
+                CSVSnapshotStore.writeString(out, data.columnNames[i]);
+                out.writeInt(column.decimals);
+                for (long value : column.values) {
+                    out.writeLong(value);
+                }
+                long[] present = (column.present == null) ? null : column.present.toLongArray();
+                out.writeInt((present == null) ? -1 : present.length);
+                if (present != null) {
+                    for (long word : present) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+        }
+
+        @Override
+        @NotNull
+        public CSVNumericData read(@NotNull ByteBuffer in) throws IOException {
+            Date timestamp = new Date(in.getLong());
+            String separator = CSVSnapshotStore.readString(in);
+            int headerLength = in.getInt();
+            long contentLength = in.getLong();
+            long contentChecksum = in.getLong();
+            boolean endsWithLineBreak = in.get() != 0;
+            int rowCount = in.getInt();
+            int columnCount = in.getInt();
+            // limits might have been lowered since the snapshot was stored
+            CSVLimits.INSTANCE.checkRows(rowCount);
+            CSVLimits.INSTANCE.checkColumns(headerLength);
+            if (rowCount < 0 || headerLength < 0 || columnCount != Math.max(0, headerLength - 1)) {
+                throw new IOException("Corrupted snapshot");
+            }
+            long[] days = readLongs(in, rowCount);
+            String[] columnNames = new String[columnCount];
+            NumberColumn[] columns = new NumberColumn[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columnNames[i] = CSVSnapshotStore.readString(in);
+                int decimals = in.getInt();
+                if (decimals < 0 || decimals > MAX_DECIMALS) {
+                    throw new IOException("Corrupted snapshot");
+                }
+                long[] values = readLongs(in, rowCount);
+                int words = in.getInt();
+                BitSet present = (words < 0) ? null : BitSet.valueOf(readLongs(in, words));
+                columns[i] = new NumberColumn(values, decimals, present);
+            }
+            return new CSVNumericData(timestamp, separator, headerLength, contentLength, contentChecksum, endsWithLineBreak, columnNames, days, columns);
+        }
+
+        private static @NotNull long[] readLongs(@NotNull ByteBuffer in, int count) {
+            long[] result = new long[count];
+            in.asLongBuffer().get(result);
+            in.position(in.position() + 8 * count);
+            return result;
+        }
+    }
+
+    private static final DateFormat xmlDateFormat = new ThreadSafeDateFormatWrapper(new SimpleDateFormat("yyyy-MM-dd"));
+
+    private final @NotNull String[] columnNames;
+    private final @NotNull Map<String, Integer> columnIndexes = new HashMap<>();
+    private final @NotNull long[] days;
+    private final @NotNull NumberColumn[] columns;
+    private final @NotNull Date timestamp;
+    private final @NotNull ConcurrentMap<String, Buckets> buckets = new ConcurrentHashMap<>();
+    private final @NotNull ConcurrentMap<String, Rollup> rollups = new ConcurrentHashMap<>();
+
+    private final @NotNull String separator;
+    private final int headerLength;
+    private final long contentLength;
+    private final long contentChecksum;
+    private final boolean endsWithLineBreak;
+    private final boolean window;
+    /**
+     * Whether reading of the window stopped at {@link CSVLimits#getMaxKeptRows(int)}, so later rows of the file are missing.
+     */
+    private final boolean truncated;
+
+    /**
+     * Maximum number of decimal places kept for a column, further digits are rounded.
+     */
+    static final int MAX_DECIMALS = 6;
+    private static final long[] POWERS_OF_TEN = new long[MAX_DECIMALS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * @return value of given fixed-point number
+     */
+    static double toDouble(long unscaled, int decimals) {
+        return (decimals == 0) ? unscaled : unscaled / (double) POWERS_OF_TEN[decimals];
+    }
+
+    /**
+     * Values of rows or of intervals (see {@link #getRollups(int[], Aggregation[], Scale, int)}), some values may be missing.
+     */
+    abstract static class Values {
+        /**
+         * @return <code>false</code> if there is no value for given index
+         */
+        abstract boolean isPresent(int index);
+
+        abstract double get(int index);
+    }
+
+    /**
+     * Column of fixed-point numbers: values are stored as longs multiplied by <code>10^decimals</code>, where the number
+     * of decimals is the same for the whole column (the largest one found in the file), so integer columns are stored exactly as they are.
+     */
+    static final class NumberColumn extends Values {
+        private final @NotNull long[] values;
+        private final int decimals;
+        private final @Nullable BitSet present;
+
+        NumberColumn(@NotNull long[] values, int decimals, @Nullable BitSet present) {
+            this.values = values;
+            this.decimals = decimals;
+            this.present = present;
+        }
+
+        /**
+         * @return <code>false</code> if the record for given row did not contain this column
+         */
+        @Override
+        boolean isPresent(int row) {
+            return present == null || present.get(row);
+        }
+
+        @Override
+        double get(int row) {
+            return toDouble(values[row], decimals);
+        }
+
+        /**
+         * Aggregates present values of rows <code>[from, to)</code> in a single pass.
+         *
+         * @return aggregated value or {@link Double#NaN} if there is no value to aggregate
+         */
+        double aggregate(int from, int to, @NotNull Aggregation aggregation) {
+            long result = 0;
+            long count = 0;
+            for (int row = from; row < to; row++) {
+                if (isPresent(row)) {
+                    result = (count == 0) ? values[row] : aggregation.accumulate(result, values[row]);
+                    count++;
+                }
+            }
+            return (count == 0) ? Double.NaN : aggregation.result(result, count, decimals);
+        }
+
+        long estimatedSize() {
+            return 24 + 8L * values.length + ((present == null) ? 0 : 32 + present.size() / 8);
+        }
+
+        static @NotNull NumberColumn of(@NotNull long[] values, int decimals, @NotNull BitSet present) {
+            return new NumberColumn(values, decimals, (present.cardinality() == values.length) ? null : present);
+        }
+
+        private @NotNull BitSet copyPresent() {
+            return CSVNumericData.copyPresent(present, values.length);
+        }
+
+        @NotNull
+        NumberColumn append(@NotNull long[] tailValues, int tailDecimals, @NotNull BitSet tailPresent) throws IOException {
+            int length = values.length;
+            int newDecimals = Math.max(decimals, tailDecimals);
+            long[] newValues = Arrays.copyOf(values, length + tailValues.length);
+            rescale(newValues, 0, length, newDecimals - decimals);
+            System.arraycopy(tailValues, 0, newValues, length, tailValues.length);
+            rescale(newValues, length, newValues.length, newDecimals - tailDecimals);
+            BitSet newPresent = copyPresent();
+            for (int row = tailPresent.nextSetBit(0); row >= 0; row = tailPresent.nextSetBit(row + 1)) {
+                newPresent.set(length + row);
+            }
+            return of(newValues, newDecimals, newPresent);
+        }
+    }
+
+    /**
+     * Multiplies values <code>[from, to)</code> by <code>10^places</code>.
+     */
+    private static void rescale(@NotNull long[] values, int from, int to, int places) throws IOException {
+        if (places == 0) {
+            return;
+        }
+        long factor = POWERS_OF_TEN[places];
+        try {
+            for (int i = from; i < to; i++) {
+                values[i] = Math.multiplyExact(values[i], factor);
+            }
+        } catch (ArithmeticException e) {
+            throw new IOException("Value does not fit into " + MAX_DECIMALS + " decimal places", e);
+        }
+    }
+
+    private static @NotNull BitSet copyPresent(@Nullable BitSet present, int length) {
+        if (present != null) {
+            return (BitSet) present.clone();
+        }
+        BitSet all = new BitSet(length);
+        all.set(0, length);
+        return all;
+    }
+
+    /**
+     * Aggregated values of intervals.
+     */
+    static final class AggregatedValues extends Values {
+        private final @NotNull double[] values;
+        private final @Nullable BitSet present;
+
+        AggregatedValues(@NotNull double[] values, @NotNull BitSet present) {
+            this.values = values;
+            this.present = (present.cardinality() == values.length) ? null : present;
+        }
+
+        @Override
+        boolean isPresent(int bucket) {
+            return present == null || present.get(bucket);
+        }
+
+        @Override
+        double get(int bucket) {
+            return values[bucket];
+        }
+
+        long estimatedSize() {
+            return 16 + 8L * values.length + ((present == null) ? 0 : 32 + present.size() / 8);
+        }
+    }
+
+    private static final class Rollup {
+        final int column;
+        final @NotNull Scale scale;
+        final int firstDayOfWeek;
+        final @NotNull Aggregation aggregation;
+        final @NotNull AggregatedValues values;
+
+        Rollup(int column, @NotNull Scale scale, int firstDayOfWeek, @NotNull Aggregation aggregation, @NotNull AggregatedValues values) {
+            this.column = column;
+            this.scale = scale;
+            this.firstDayOfWeek = firstDayOfWeek;
+            this.aggregation = aggregation;
+            this.values = values;
+        }
+    }
+
+    private CSVNumericData(@NotNull LoadedContent loadedContent, @NotNull String separator) throws IOException {
+        this(loadedContent, separator, false, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param window keep only rows with dates in given (inclusive) range, {@link CSVLimits} are not applied to the file then
+     *            (it is known to exceed them), reading just stops when the kept rows reach {@link CSVLimits#getMaxKeptRows(int)}
+     */
+    private CSVNumericData(@NotNull LoadedContent loadedContent, @NotNull String separator, boolean window, long fromDay, long toDay) throws IOException {
+        this.separator = separator;
+        this.window = window;
+        timestamp = loadedContent.timestamp;
+        CSVLimits limits = CSVLimits.INSTANCE;
+        TrackingInputStream content = new TrackingInputStream(window ? loadedContent.content : limits.limit(loadedContent.content));
+        RowsBuilder builder;
+        try (CSVTokenizer tokenizer = new CSVTokenizer(new InputStreamReader(content, StandardCharsets.UTF_8), separator)) {
+            headerLength = tokenizer.next() ? tokenizer.getFieldCountWithoutTrailingEmpty() : 0;
+            if (!window) {
+                limits.checkColumns(headerLength);
+            }
+            columnNames = new String[Math.max(0, headerLength - 1)];
+            for (int i = 0; i < columnNames.length; i++) {
+                columnNames[i] = tokenizer.getField(i + 1);
+                columnIndexes.put(columnNames[i], i);
+            }
+            builder = new RowsBuilder(columnNames.length, fromDay, toDay, window ? limits.getMaxKeptRows(columnNames.length + 1) : Integer.MAX_VALUE);
+            boolean full = false;
+            while (!full && tokenizer.next()) {
+                full = !builder.addRow(tokenizer, headerLength);
+                if (!window) {
+                    limits.checkRows(builder.rowCount);
+                }
+            }
+            truncated = full;
+        }
+        CSVWidgetMetrics.INSTANCE.addParsedRows(builder.rowCount);
+        CSVWidgetMetrics.INSTANCE.addDateParseNanos(builder.dateParseNanos);
+        contentLength = content.getCount();
+        contentChecksum = content.getChecksum();
+        endsWithLineBreak = content.endsWithLineBreak();
+        builder.sortAndMerge();
+        days = builder.days;
+        columns = new NumberColumn[columnNames.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = NumberColumn.of(builder.values[i], builder.decimals[i], builder.present[i]);
+        }
+    }
+
+    /**
+     * Restores data from a snapshot (see {@link NumericDataParser}).
+     */
+    private CSVNumericData(@NotNull Date timestamp, @NotNull String separator, int headerLength, long contentLength, long contentChecksum, boolean endsWithLineBreak,
+            @NotNull String[] columnNames, @NotNull long[] days, @NotNull NumberColumn[] columns) {
+        this.timestamp = timestamp;
+        this.separator = separator;
+        this.headerLength = headerLength;
+        this.contentLength = contentLength;
+        this.contentChecksum = contentChecksum;
+        this.endsWithLineBreak = endsWithLineBreak;
+        this.columnNames = columnNames;
+        this.days = days;
+        this.columns = columns;
+        for (int i = 0; i < columnNames.length; i++) {
+            columnIndexes.put(columnNames[i], i);
+        }
+        window = false;
+        truncated = false;
+    }
+
+    /**
+     * Creates copy of given data extended by given rows (whose dates must be later than dates of all existing rows).
+     */
+    private CSVNumericData(@NotNull CSVNumericData previous, @NotNull RowsBuilder tail, @NotNull Date timestamp, @NotNull TrackingInputStream content)
+            throws IOException {
+        this.timestamp = timestamp;
+        window = false;
+        truncated = false;
+        separator = previous.separator;
+        headerLength = previous.headerLength;
+        columnNames = previous.columnNames;
+        columnIndexes.putAll(previous.columnIndexes);
+        contentLength = content.getCount();
+        contentChecksum = content.getChecksum();
+        endsWithLineBreak = content.endsWithLineBreak();
+
+        int previousLength = previous.days.length;
+        days = Arrays.copyOf(previous.days, previousLength + tail.days.length);
+        System.arraycopy(tail.days, 0, days, previousLength, tail.days.length);
+        columns = new NumberColumn[columnNames.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = previous.columns[i].append(tail.values[i], tail.decimals[i], tail.present[i]);
+        }
+
+        for (Map.Entry<String, Buckets> bucketsEntry : previous.buckets.entrySet()) {
+            buckets.put(bucketsEntry.getKey(), new Buckets(bucketsEntry.getValue(), days));
+        }
+        for (Map.Entry<String, Rollup> rollupEntry : previous.rollups.entrySet()) {
+            Rollup rollup = rollupEntry.getValue();
+            Buckets scaled = getBuckets(rollup.scale, rollup.firstDayOfWeek);
+            // the last previously known interval might have got new rows
+            int firstChanged = Math.max(0, rollup.values.values.length - 1);
+            double[] values = Arrays.copyOf(rollup.values.values, scaled.getCount());
+            BitSet present = copyPresent(rollup.values.present, rollup.values.values.length);
+            for (int bucket = firstChanged; bucket < values.length; bucket++) {
+                double value = columns[rollup.column].aggregate(scaled.getStart(bucket), scaled.getEnd(bucket), rollup.aggregation);
+                values[bucket] = value;
+                present.set(bucket, !Double.isNaN(value));
+            }
+            rollups.put(rollupEntry.getKey(), new Rollup(rollup.column, rollup.scale, rollup.firstDayOfWeek, rollup.aggregation, new AggregatedValues(values, present)));
+        }
+    }
+
+    /**
+     * Reads given file as a stream and keeps only rows with dates in given (inclusive) range, used for files exceeding
+     * {@link CSVLimits}. Reading stops when the kept rows would exceed the limits (see {@link #isTruncated()}). Such data
+     * is never cached.
+     */
+    static @NotNull CSVNumericData parseWindow(@NotNull LoadedContent content, @NotNull String separator, long fromDay, long toDay) throws IOException {
+        return new CSVNumericData(content, separator, true, fromDay, toDay);
+    }
+
+    /**
+     * @return <code>true</code> if some rows of the window were not read because of {@link CSVLimits}
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public boolean isAppendable() {
+        return endsWithLineBreak && headerLength > 0 && !window;
+    }
+
+    @Override
+    @Nullable
+    public CSVNumericData append(@NotNull LoadedContent loadedContent) throws IOException {
+        if (!isAppendable()) {
+            return null;
+        }
+        TrackingInputStream content = new TrackingInputStream(CSVLimits.INSTANCE.limit(loadedContent.content));
+        try (CSVTokenizer tokenizer = new CSVTokenizer(new InputStreamReader(content, StandardCharsets.UTF_8), separator)) {
+            if (!content.consume(contentLength) || content.getChecksum() != contentChecksum) {
+                return null;
+            }
+            RowsBuilder tail = new RowsBuilder(columnNames.length, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+            while (tokenizer.next()) {
+                tail.addRow(tokenizer, headerLength);
+                CSVLimits.INSTANCE.checkRows(days.length + tail.rowCount);
+            }
+            if (!tail.sorted || (tail.rowCount > 0 && days.length > 0 && tail.days[0] <= days[days.length - 1])) {
+                // not just new dates at the end, merging is left to the full parse
+                return null;
+            }
+            CSVWidgetMetrics.INSTANCE.addParsedRows(tail.rowCount);
+            CSVWidgetMetrics.INSTANCE.addDateParseNanos(tail.dateParseNanos);
+            tail.sortAndMerge();
+            return new CSVNumericData(this, tail, loadedContent.timestamp, content);
+        }
+    }
+
+    public @NotNull Date getTimestamp() {
+        return timestamp;
+    }
+
+    @NotNull
+    String[] getColumnNames() {
+        return columnNames;
+    }
+
+    /**
+     * @return index of column with given header or <code>-1</code> if there is no such column (the last one wins for duplicate headers)
+     */
+    int getColumnIndex(@NotNull String name) {
+        Integer index = columnIndexes.get(name);
+        return (index == null) ? -1 : index;
+    }
+
+    @NotNull
+    NumberColumn getColumn(int index) {
+        return columns[index];
+    }
+
+    int getRowCount() {
+        return days.length;
+    }
+
+    long getDay(int row) {
+        return days[row];
+    }
+
+    /**
+     * Rows <code>[from, to)</code> whose dates are within given (inclusive) range.
+     */
+    static final class RowRange {
+        final int from;
+        final int to;
+
+        RowRange(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Finds rows for given dates by binary search, so rows outside of the range are never visited.
+     */
+    @NotNull
+    RowRange getRows(long fromDay, long toDay) {
+        int from = firstRowNotBefore(fromDay);
+        int to = firstRowNotBefore(toDay + 1);
+        return new RowRange(from, Math.max(from, to));
+    }
+
+    private int firstRowNotBefore(long day) {
+        int index = Arrays.binarySearch(days, day);
+        return (index >= 0) ? index : -index - 1;
+    }
+
+    /**
+     * Consecutive rows grouped by the interval of {@link Scale} they belong to.
+     */
+    static final class Buckets {
+        private final @NotNull Scale scale;
+        private final int firstDayOfWeek;
+        private final @NotNull long[] days;
+        private final @NotNull int[] starts;
+
+        Buckets(@NotNull long[] rowDays, @NotNull Scale scale, int firstDayOfWeek) {
+            this(rowDays, scale, firstDayOfWeek, new long[0], new int[] { 0 });
+        }
+
+        /**
+         * Extends buckets of previous (shorter) rows, only the last previous interval and new rows are scanned.
+         */
+        Buckets(@NotNull Buckets previous, @NotNull long[] rowDays) {
+            this(rowDays, previous.scale, previous.firstDayOfWeek, previous.days, previous.starts);
+        }
+
+        private Buckets(@NotNull long[] rowDays, @NotNull Scale scale, int firstDayOfWeek, @NotNull long[] previousDays, @NotNull int[] previousStarts) {
+            this.scale = scale;
+            this.firstDayOfWeek = firstDayOfWeek;
+            int count = Math.max(0, previousDays.length - 1);
+            int firstRow = previousStarts[count];
+            long[] bucketDays = Arrays.copyOf(previousDays, count + rowDays.length - firstRow);
+            int[] bucketStarts = Arrays.copyOf(previousStarts, count + rowDays.length - firstRow + 1);
+            for (int row = firstRow; row < rowDays.length; row++) {
+                long day = scale.scaleDay(rowDays[row], firstDayOfWeek);
+                if (count == 0 || bucketDays[count - 1] != day) {
+                    bucketDays[count] = day;
+                    bucketStarts[count] = row;
+                    count++;
+                }
+            }
+            bucketStarts[count] = rowDays.length;
+            days = Arrays.copyOf(bucketDays, count);
+            starts = Arrays.copyOf(bucketStarts, count + 1);
+        }
+
+        int getCount() {
+            return days.length;
+        }
+
+        /**
+         * @return first day of the interval
+         */
+        long getDay(int bucket) {
+            return days[bucket];
+        }
+
+        int getStart(int bucket) {
+            return starts[bucket];
+        }
+
+        int getEnd(int bucket) {
+            return starts[bucket + 1];
+        }
+
+        int getBucketOfRow(int row) {
+            int index = Arrays.binarySearch(starts, 0, days.length, row);
+            return (index >= 0) ? index : -index - 2;
+        }
+
+        long estimatedSize() {
+            return 48 + 8L * days.length + 4L * starts.length;
+        }
+    }
+
+    @NotNull
+    Buckets getBuckets(@NotNull Scale scale, int firstDayOfWeek) {
+        String key = scale + ":" + firstDayOfWeek;
+        Buckets result = buckets.get(key);
+        if (result == null) {
+            result = new Buckets(days, scale, firstDayOfWeek);
+            Buckets concurrent = buckets.putIfAbsent(key, result);
+            if (concurrent != null) {
+                result = concurrent;
+            } else {
+                CSVDataCache.INSTANCE.grown(this, 100 + result.estimatedSize());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns values of given column aggregated for every bucket of {@link #getBuckets(Scale, int)}.
+     * Rollups are computed on first use and kept with this (cached) instance, so later renders only look them up.
+     */
+    @NotNull
+    Values getRollup(int column, @NotNull Scale scale, int firstDayOfWeek, @NotNull Aggregation aggregation) {
+        return getRollups(new int[] { column }, new Aggregation[] { aggregation }, scale, firstDayOfWeek)[0];
+    }
+
+    /**
+     * Same as {@link #getRollup(int, Scale, int, Aggregation)} for several columns at once, rollups not computed yet
+     * are computed together in a single pass over the rows.
+     */
+    @NotNull
+    Values[] getRollups(@NotNull int[] columnIndexes, @NotNull Aggregation[] aggregations, @NotNull Scale scale, int firstDayOfWeek) {
+        Values[] result = new Values[columnIndexes.length];
+        String[] keys = new String[columnIndexes.length];
+        int missing = 0;
+        for (int i = 0; i < columnIndexes.length; i++) {
+            if (scale == Scale.day && aggregations[i].isIdentity()) {
+                // rows have unique dates, every bucket is a single row
+                result[i] = columns[columnIndexes[i]];
+                continue;
+            }
+            keys[i] = columnIndexes[i] + ":" + scale + ":" + firstDayOfWeek + ":" + aggregations[i];
+            Rollup rollup = rollups.get(keys[i]);
+            if (rollup == null) {
+                missing++;
+            } else {
+                result[i] = rollup.values;
+            }
+        }
+        if (missing > 0) {
+            computeRollups(result, keys, columnIndexes, aggregations, scale, firstDayOfWeek);
+        }
+        return result;
+    }
+
+    /**
+     * Every rollup accumulates fixed-point value and count of values per bucket, the results are converted when all rows are visited.
+     */
+    private void computeRollups(@NotNull Values[] result, @NotNull String[] keys, @NotNull int[] columnIndexes, @NotNull Aggregation[] aggregations,
+            @NotNull Scale scale, int firstDayOfWeek) {
+        Buckets scaled = getBuckets(scale, firstDayOfWeek);
+        int bucketCount = scaled.getCount();
+        long[][] values = new long[result.length][];
+        long[][] counts = new long[result.length][];
+        for (int i = 0; i < result.length; i++) {
+            if (result[i] == null) {
+                values[i] = new long[bucketCount];
+                counts[i] = new long[bucketCount];
+            }
+        }
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            for (int row = scaled.getStart(bucket); row < scaled.getEnd(bucket); row++) {
+                for (int i = 0; i < result.length; i++) {
+                    NumberColumn column = columns[columnIndexes[i]];
+                    if (values[i] != null && column.isPresent(row)) {
+                        long value = column.values[row];
+                        values[i][bucket] = (counts[i][bucket] == 0) ? value : aggregations[i].accumulate(values[i][bucket], value);
+                        counts[i][bucket]++;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < result.length; i++) {
+            if (values[i] != null) {
+                int decimals = columns[columnIndexes[i]].decimals;
+                double[] aggregated = new double[bucketCount];
+                BitSet present = new BitSet(bucketCount);
+                for (int bucket = 0; bucket < bucketCount; bucket++) {
+                    if (counts[i][bucket] > 0) {
+                        aggregated[bucket] = aggregations[i].result(values[i][bucket], counts[i][bucket], decimals);
+                        present.set(bucket);
+                    }
+                }
+                Rollup rollup = new Rollup(columnIndexes[i], scale, firstDayOfWeek, aggregations[i], new AggregatedValues(aggregated, present));
+                Rollup concurrent = rollups.putIfAbsent(keys[i], rollup);
+                if (concurrent == null) {
+                    CSVDataCache.INSTANCE.grown(this, 100 + rollup.values.estimatedSize());
+                }
+                result[i] = (concurrent != null) ? concurrent.values : rollup.values;
+            }
+        }
+    }
+
+    @Override
+    public long estimatedSize() {
+        long size = 64 + 16 + 8L * days.length;
+        for (int i = 0; i < columns.length; i++) {
+            size += 40 + 2L * columnNames[i].length() + 48 + columns[i].estimatedSize();
+        }
+        for (Buckets scaled : buckets.values()) {
+            size += 100 + scaled.estimatedSize();
+        }
+        for (Rollup rollup : rollups.values()) {
+            size += 100 + rollup.values.estimatedSize();
+        }
+        return size;
+    }
+
+    /**
+     * Reads just the header and the first (non-empty) record of given file.
+     *
+     * @return <code>true</code> if the first record starts with a date (so the file can be shown by the trend chart)
+     */
+    static boolean startsWithDate(@NotNull LoadedContent content, @NotNull String separator) throws IOException {
+        try (CSVTokenizer tokenizer = new CSVTokenizer(new InputStreamReader(content.content, StandardCharsets.UTF_8), separator)) {
+            if (!tokenizer.next()) {
+                return false;
+            }
+            while (tokenizer.next()) {
+                if (tokenizer.getFieldCountWithoutTrailingEmpty() > 0) {
+                    try {
+                        parseDay(tokenizer);
+                        return true;
+                    } catch (IOException e) {
+                        return false;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Usual <code>yyyy-MM-dd</code> dates are parsed directly from the tokenizer buffer, only other (lenient) forms
+     * accepted by {@link SimpleDateFormat} go through the shared synchronized format.
+     */
+    private static long parseDay(@NotNull CSVTokenizer tokenizer) throws IOException {
+        long day = EpochDays.parseIso(tokenizer.getBuffer(), tokenizer.getFieldStart(0), tokenizer.getFieldEnd(0));
+        if (day != EpochDays.INVALID) {
+            return day;
+        }
+        try {
+            return EpochDays.fromDate(xmlDateFormat.parse(tokenizer.getField(0)));
+        } catch (ParseException e) {
+            throw new IOException(e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * Collects rows in file order into growable primitive arrays.
+     */
+    private static final class RowsBuilder {
+        private long[] days;
+        private final @NotNull long[][] values;
+        private final @NotNull int[] decimals;
+        private final @NotNull BitSet[] present;
+        private final long fromDay;
+        private final long toDay;
+        private final int maxRows;
+        private int rowCount;
+        private boolean sorted = true;
+        private long dateParseNanos;
+
+        /**
+         * Rows with dates outside of given (inclusive) range are skipped, at most given number of rows is added.
+         */
+        RowsBuilder(int columnCount, long fromDay, long toDay, int maxRows) {
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+            this.maxRows = maxRows;
+            days = new long[Math.min(1024, maxRows)];
+            values = new long[columnCount][days.length];
+            decimals = new int[columnCount];
+            present = new BitSet[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                present[i] = new BitSet();
+            }
+        }
+
+        /**
+         * @return <code>false</code> if the row was not added because there are already {@link #maxRows} rows
+         */
+        boolean addRow(@NotNull CSVTokenizer tokenizer, int headerLength) throws IOException {
+            int length = tokenizer.getFieldCountWithoutTrailingEmpty();
+            if (length == 0) {
+                return true;
+            }
+            if (length > headerLength) {
+                throw new IOException("Record for '" + tokenizer.getField(0) + "' has more fields than the header");
+            }
+            long start = System.nanoTime();
+            long day = parseDay(tokenizer);
+            dateParseNanos += System.nanoTime() - start;
+            if (day < fromDay || day > toDay) {
+                return true;
+            }
+            if (rowCount == maxRows) {
+                return false;
+            }
+            if (rowCount == days.length) {
+                int capacity = (int) Math.min(rowCount * 2L, maxRows);
+                days = Arrays.copyOf(days, capacity);
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Arrays.copyOf(values[i], capacity);
+                }
+            }
+            if (rowCount > 0 && day <= days[rowCount - 1]) {
+                sorted = false;
+            }
+            days[rowCount] = day;
+            for (int i = 1; i < length; i++) {
+                if (!tokenizer.isFieldEmpty(i)) {
+                    int column = i - 1;
+                    int places = Math.min(MAX_DECIMALS, tokenizer.getDecimalPlaces(i));
+                    if (places > decimals[column]) {
+                        // the first decimal number in the column, values parsed so far get more decimal places
+                        rescale(values[column], 0, rowCount, places - decimals[column]);
+                        decimals[column] = places;
+                    }
+                    values[column][rowCount] = tokenizer.getDecimalField(i, decimals[column]);
+                    present[column].set(rowCount);
+                }
+            }
+            rowCount++;
+            return true;
+        }
+
+        /**
+         * Sorts rows by date (keeping file order for equal dates) and merges rows with the same date.
+         */
+        void sortAndMerge() {
+            if (sorted) {
+                days = Arrays.copyOf(days, rowCount);
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Arrays.copyOf(values[i], rowCount);
+                }
+                return;
+            }
+            long minDay = Long.MAX_VALUE;
+            for (int row = 0; row < rowCount; row++) {
+                minDay = Math.min(minDay, days[row]);
+            }
+            long[] keys = new long[rowCount];
+            for (int row = 0; row < rowCount; row++) {
+                keys[row] = ((days[row] - minDay) << 32) | row;
+            }
+            Arrays.sort(keys);
+
+            long[] mergedDays = new long[rowCount];
+            long[][] mergedValues = new long[values.length][rowCount];
+            BitSet[] mergedPresent = new BitSet[values.length];
+            for (int i = 0; i < values.length; i++) {
+                mergedPresent[i] = new BitSet();
+            }
+            int merged = -1;
+            for (long key : keys) {
+                int row = (int) key;
+                if (merged < 0 || mergedDays[merged] != days[row]) {
+                    merged++;
+                    mergedDays[merged] = days[row];
+                }
+                for (int i = 0; i < values.length; i++) {
+                    if (present[i].get(row)) {
+                        mergedValues[i][merged] = values[i][row];
+                        mergedPresent[i].set(merged);
+                    }
+                }
+            }
+            int mergedCount = merged + 1;
+            days = Arrays.copyOf(mergedDays, mergedCount);
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Arrays.copyOf(mergedValues[i], mergedCount);
+                present[i] = mergedPresent[i];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.alm.extensions.widgets.common.Utils;
+import com.polarion.alm.extensions.widgets.common.Utils.ResourceInfo;
+import com.polarion.alm.extensions.widgets.csv.CSVBasedTrendChartWidgetRenderer.Aggregation;
+import com.polarion.alm.extensions.widgets.csv.CSVBasedTrendChartWidgetRenderer.Scale;
+import com.polarion.platform.core.PlatformContext;
+import com.polarion.platform.security.ISecurityService;
+
+/**
+ * Keeps the data cache warm: data sources are checked periodically and when a new revision appears, it is parsed into
+ * {@link CSVDataCache} (and its snapshot) before some user renders it. Rollups of the trend charts which used the previous
+ * revision are computed too.
+ * <p>
+ * Watched are data sources configured in {@link #PROPERTY_LOCATIONS} and data sources rendered by widgets (in the current
+ * revision, not in a baseline). Checks run in a single low-priority daemon thread as the system user, users still need read
+ * access to the file to render it from the cache. Started by the <code>hivemind.Startup</code> contribution of this module.
+ */
+@SuppressWarnings("nls")
+public final class CSVPrecomputeScheduler implements Runnable {
+
+    static final String PROPERTY_INTERVAL = "com.polarion.alm.extensions.widgets.csv.precomputeInterval";
+    static final String PROPERTY_LOCATIONS = "com.polarion.alm.extensions.widgets.csv.precomputeLocations";
+    private static final int DEFAULT_INTERVAL = 60;
+    private static final String DEFAULT_SEPARATOR = ",";
+    private static final int MAX_WATCHED = 500;
+    /**
+     * Failed revision is retried after 1, 2, 4, ... checks, at most after this power of two.
+     */
+    private static final int MAX_BACKOFF_SHIFT = 6;
+
+    private static final class RollupRequest {
+        final @NotNull String column;
+        final @NotNull Aggregation aggregation;
+        final @NotNull Scale scale;
+        final int firstDayOfWeek;
+
+        RollupRequest(@NotNull String column, @NotNull Aggregation aggregation, @NotNull Scale scale, int firstDayOfWeek) {
+            this.column = column;
+            this.aggregation = aggregation;
+            this.scale = scale;
+            this.firstDayOfWeek = firstDayOfWeek;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RollupRequest)) {
+                return false;
+            }
+            RollupRequest other = (RollupRequest) obj;
+            return column.equals(other.column) && aggregation == other.aggregation && scale == other.scale && firstDayOfWeek == other.firstDayOfWeek;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((column.hashCode() * 31 + aggregation.hashCode()) * 31 + scale.hashCode()) * 31 + firstDayOfWeek;
+        }
+    }
+
+    private static final class Watched<T extends CSVDataCache.Cacheable> {
+        final @NotNull String dataLocation;
+        final @NotNull String separator;
+        final @NotNull Class<T> type;
+        final @NotNull CSVDataCache.Parser<T> parser;
+        /**
+         * Whether the file is parsed only if its first record starts with a date (for configured files of unknown type).
+         */
+        final boolean datesRequired;
+        final @NotNull Set<RollupRequest> rollups = ConcurrentHashMap.<RollupRequest> newKeySet();
+        volatile @Nullable String revision;
+        /**
+         * Revision whose last attempt failed, number of its failures and checks to skip before it is tried again.
+         */
+        private @Nullable String failedRevision;
+        private int failures;
+        private int checksToSkip;
+
+        Watched(@NotNull String dataLocation, @NotNull String separator, @NotNull Class<T> type, @NotNull CSVDataCache.Parser<T> parser, boolean datesRequired) {
+            this.dataLocation = dataLocation;
+            this.separator = separator;
+            this.type = type;
+            this.parser = parser;
+            this.datesRequired = datesRequired;
+        }
+
+        /**
+         * Parses the current revision unless it was already done. A failed revision (e.g. because of a transient repository
+         * problem) is tried again with exponentially growing pauses until it succeeds or the file changes.
+         */
+        void precompute() throws Exception {
+            ResourceInfo info = Utils.getResourceInfo(dataLocation, null);
+            String current = info.revision;
+            if (current != null && current.equals(revision)) {
+                return;
+            }
+            boolean failedBefore = current != null && current.equals(failedRevision);
+            if (failedBefore && checksToSkip > 0) {
+                checksToSkip--;
+                return;
+            }
+            try {
+                if (!datesRequired || CSVNumericData.startsWithDate(CSVWidgetMetrics.INSTANCE.load(info), separator)) {
+                    T data = CSVDataCache.INSTANCE.get(dataLocation, null, separator, type, parser);
+                    if (data instanceof CSVNumericData) {
+                        precomputeRollups((CSVNumericData) data);
+                    }
+                    CSVWidgetMetrics.INSTANCE.precomputed();
+                }
+            } catch (CSVLimits.LimitExceededException e) {
+                // rendered as a stream, nothing to prepare
+            } catch (Exception e) {
+                failures = failedBefore ? failures + 1 : 1;
+                failedRevision = current;
+                checksToSkip = (1 << Math.min(failures - 1, MAX_BACKOFF_SHIFT)) - 1;
+                throw e;
+            }
+            revision = current;
+            failedRevision = null;
+        }
+
+        private void precomputeRollups(@NotNull CSVNumericData data) {
+            for (RollupRequest rollup : rollups) {
+                int column = data.getColumnIndex(rollup.column);
+                if (column >= 0) {
+                    data.getRollup(column, rollup.scale, rollup.firstDayOfWeek, rollup.aggregation);
+                }
+            }
+        }
+    }
+
+    /**
+     * Data sources rendered by widgets, the least recently rendered are forgotten first.
+     */
+    private static final Map<String, Watched<?>> rendered = new LinkedHashMap<String, Watched<?>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Watched<?>> eldest) {
+            return size() > MAX_WATCHED;
+        }
+    };
+
+    private static volatile @Nullable ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Starts the periodic checks (called once by HiveMind on startup).
+     */
+    @Override
+    public void run() {
+        start(Integer.getInteger(PROPERTY_INTERVAL, DEFAULT_INTERVAL), System.getProperty(PROPERTY_LOCATIONS));
+    }
+
+    private static synchronized void start(int intervalSeconds, @Nullable String locations) {
+        if (intervalSeconds <= 0 || executor != null) {
+            return;
+        }
+        final List<Watched<?>> configured = parseLocations(locations);
+        ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CSV Widgets Precompute");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        result.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                precomputeAll(configured);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        executor = result;
+    }
+
+    /**
+     * @param locations comma separated data locations, every location may be followed by <code>|</code> and field separator
+     *            (default is comma)
+     */
+    private static @NotNull List<Watched<?>> parseLocations(@Nullable String locations) {
+        List<Watched<?>> result = new ArrayList<>();
+        if (locations == null) {
+            return result;
+        }
+        for (String location : locations.split(",")) {
+            location = location.trim();
+            if (!location.isEmpty()) {
+                int separatorStart = location.indexOf('|');
+                String dataLocation = (separatorStart < 0) ? location : location.substring(0, separatorStart).trim();
+                String separator = (separatorStart < 0) ? DEFAULT_SEPARATOR : location.substring(separatorStart + 1);
+                // the type of the file is not known, it is prepared for the chart only if it starts with a date
+                result.add(new Watched<>(dataLocation, separator, CSVData.class, CSVData.PARSER, false));
+                result.add(new Watched<>(dataLocation, separator, CSVNumericData.class, CSVNumericData.PARSER, true));
+            }
+        }
+        return result;
+    }
+
+    private static void precomputeAll(@NotNull List<Watched<?>> configured) {
+        List<Watched<?>> all = new ArrayList<>(configured);
+        synchronized (rendered) {
+            all.addAll(rendered.values());
+        }
+        for (final Watched<?> watched : all) {
+            try {
+                getSecurityService().doAsSystemUser(new PrivilegedExceptionAction<Void>() {
+                    @Override
+                    public Void run() throws Exception {
+                        watched.precompute();
+                        return null;
+                    }
+                });
+            } catch (Exception e) {
+                // the file may be missing or broken now, rendering will report it
+                CSVWidgetMetrics.INSTANCE.precomputeFailed();
+            }
+        }
+    }
+
+    /**
+     * Records data source loaded by a widget.
+     *
+     * @param baseline only data sources loaded in the current revision (<code>null</code> baseline) are watched
+     */
+    static <T extends CSVDataCache.Cacheable> void watch(@NotNull String dataLocation, @Nullable String baseline, @NotNull String separator, @NotNull Class<T> type,
+            @NotNull CSVDataCache.Parser<T> parser) {
+        if (baseline == null && executor != null) {
+            getWatched(dataLocation, separator, type, parser);
+        }
+    }
+
+    /**
+     * Records rollup of a trend chart, so it is computed for new revisions of the data source too.
+     */
+    static void watchRollup(@NotNull CSVData.DataSource source, @Nullable String baseline, @NotNull String column, @NotNull Aggregation aggregation, @NotNull Scale scale,
+            int firstDayOfWeek) {
+        if (baseline == null && executor != null) {
+            Watched<?> watched = getWatched(source.dataLocation, source.separator, CSVNumericData.class, CSVNumericData.PARSER);
+            watched.rollups.add(new RollupRequest(column, aggregation, scale, firstDayOfWeek));
+        }
+    }
+
+    private static @NotNull <T extends CSVDataCache.Cacheable> Watched<?> getWatched(@NotNull String dataLocation, @NotNull String separator, @NotNull Class<T> type,
+            @NotNull CSVDataCache.Parser<T> parser) {
+        String key = type.getName() + "\n" + separator + "\n" + dataLocation;
+        synchronized (rendered) {
+            Watched<?> watched = rendered.get(key);
+            if (watched == null) {
+                watched = new Watched<>(dataLocation, separator, type, parser, false);
+                rendered.put(key, watched);
+            }
+            return watched;
+        }
+    }
+
+    private static @NotNull ISecurityService getSecurityService() {
+        return PlatformContext.getPlatform().lookupService(ISecurityService.class);
+    }
+
+}
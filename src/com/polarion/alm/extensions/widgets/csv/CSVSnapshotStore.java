@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.alm.extensions.widgets.common.Utils;
+
+/**
+ * Local directory with binary snapshots of parsed CSV files, so parsed data survives server restarts.
+ * <p>
+ * There is one snapshot file per parsed file (data location, separator, baseline and type of the parsed representation),
+ * it records the revision it was created from and is replaced when a newer revision is parsed. The least recently used
+ * snapshots are deleted when all of them take more than {@link #PROPERTY_MAX_BYTES}. Any problem with a snapshot (missing,
+ * stale, corrupted or not writable) only means that the CSV file is parsed from text as if there was no snapshot.
+ * <p>
+ * Snapshots contain content of repository files, so they are disabled unless a directory is configured, and the directory
+ * (when created here) and the snapshots are accessible only by the owner where the file system supports POSIX permissions.
+ */
+@SuppressWarnings("nls")
+final class CSVSnapshotStore {
+
+    /**
+     * Directory for snapshots, snapshots are disabled when it is not set.
+     */
+    static final String PROPERTY_DIRECTORY = "com.polarion.alm.extensions.widgets.csv.snapshotDirectory";
+    static final String PROPERTY_MAX_BYTES = "com.polarion.alm.extensions.widgets.csv.snapshotMaxBytes";
+    private static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final int MAGIC = 0x50435356; // "PCSV"
+    private static final int VERSION = 4;
+    private static final String SUFFIX = ".bin";
+
+    static final CSVSnapshotStore INSTANCE = new CSVSnapshotStore(System.getProperty(PROPERTY_DIRECTORY), Long.getLong(PROPERTY_MAX_BYTES, DEFAULT_MAX_BYTES));
+
+    /**
+     * Binary representation of one type of parsed data. Payload is written after the common header and read from
+     * the buffer positioned right after it.
+     */
+    interface Format<T extends CSVDataCache.Cacheable> {
+        void write(@NotNull T data, @NotNull DataOutputStream out) throws IOException;
+
+        @NotNull
+        T read(@NotNull ByteBuffer in) throws IOException;
+    }
+
+    private final @Nullable File directory;
+    private final long maxBytes;
+
+    CSVSnapshotStore(@Nullable String directory, long maxBytes) {
+        this.directory = (directory == null || directory.trim().isEmpty()) ? null : new File(directory.trim());
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return data of given revision or <code>null</code> if there is no usable snapshot for it
+     */
+    @Nullable
+    <T extends CSVDataCache.Cacheable> T load(@NotNull String fileKey, @Nullable String revision, @NotNull Format<T> format) {
+        File file = getFile(fileKey, revision);
+        if (file == null || !file.isFile() || file.length() > Integer.MAX_VALUE) {
+            return null;
+        }
+        try {
+            // all values are copied to the heap anyway, so the file is simply read at once (and no mapping keeps it open)
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (in.getInt() != MAGIC || in.getInt() != VERSION || !readString(in).equals(fileKey) || !readString(in).equals(revision)) {
+                return null;
+            }
+            T data = format.read(in);
+            // for eviction of the least recently used snapshots
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException | RuntimeException e) {
+            // e.g. truncated or corrupted snapshot
+            return null;
+        }
+    }
+
+    <T extends CSVDataCache.Cacheable> void store(@NotNull String fileKey, @Nullable String revision, @NotNull T data, @NotNull Format<T> format) {
+        File file = getFile(fileKey, revision);
+        if (file == null) {
+            return;
+        }
+        Path temp = null;
+        try {
+            createDirectory(directory.toPath());
+            // temporary files are created accessible only by the owner on POSIX file systems
+            temp = Files.createTempFile(directory.toPath(), file.getName(), ".tmp");
+            try (OutputStream stream = Files.newOutputStream(temp); DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, fileKey);
+                writeString(out, revision);
+                format.write(data, out);
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            temp = null;
+            evict(directory, file);
+        } catch (IOException | RuntimeException e) {
+            // snapshots are only an optimization, the file will be parsed again next time
+        } finally {
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+        }
+    }
+
+    private static void createDirectory(@NotNull Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            return;
+        }
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(path);
+        }
+    }
+
+    /**
+     * Deletes the least recently used snapshots (except given one) until all of them fit into {@link #maxBytes}.
+     */
+    private void evict(@NotNull File directory, @NotNull File keep) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        long total = 0;
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            order[i] = i;
+            if (files[i].getName().endsWith(SUFFIX)) {
+                lastModified[i] = files[i].lastModified();
+                total += files[i].length();
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastModified[a], lastModified[b]);
+            }
+        });
+        for (int i = 0; i < order.length && total > maxBytes; i++) {
+            File file = files[order[i]];
+            if (file.getName().endsWith(SUFFIX) && !file.equals(keep)) {
+                long length = file.length();
+                if (file.delete()) {
+                    total -= length;
+                }
+            }
+        }
+    }
+
+    private @Nullable File getFile(@NotNull String fileKey, @Nullable String revision) {
+        if (directory == null || revision == null) {
+            return null;
+        }
+        return new File(directory, Utils.sha256(fileKey) + SUFFIX);
+    }
+
+    /**
+     * Writes given string as UTF-8 bytes prefixed by their count (not limited to 64K like {@link DataOutputStream#writeUTF(String)}).
+     */
+    static void writeString(@NotNull DataOutputStream out, @NotNull String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static @NotNull String readString(@NotNull ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length");
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.alm.extensions.widgets.common.Utils;
+import com.polarion.alm.extensions.widgets.common.Utils.InvalidParameterException;
+import com.polarion.alm.extensions.widgets.common.Utils.RequiredParameterException;
+import com.polarion.alm.shared.api.model.rp.parameter.CompositeParameter;
+import com.polarion.alm.shared.api.model.rp.parameter.MultiParameter;
+import com.polarion.alm.shared.api.model.rp.parameter.ParameterFactory;
+import com.polarion.alm.shared.api.model.rp.parameter.RichPageParameter;
+import com.polarion.alm.shared.api.model.rp.widget.RichPageWidgetRenderingContext;
+import com.polarion.alm.shared.api.utils.collections.StrictMap;
+
+/**
+ * Column projection, row filters and sorting of the table widget. Filters are evaluated directly on the tokenizer buffer,
+ * so rows (and columns) which are not shown are never converted to strings.
+ */
+@SuppressWarnings("nls")
+final class CSVTableQuery {
+
+    private static final String PARAM_COLUMNS = "columns";
+    private static final String PARAM_SORTING = "sorting";
+    private static final String PARAM_SORT_BY = "sortBy";
+    private static final String PARAM_DIRECTION = "direction";
+    private static final String PARAM_FILTERS = "filters";
+    private static final String PARAM_COLUMN = "column";
+    private static final String PARAM_OPERATOR = "operator";
+    private static final String PARAM_VALUE = "value";
+
+    enum Direction {
+        ascending,
+        descending;
+    }
+
+    enum Operator {
+        equals,
+        contains,
+        min,
+        max;
+    }
+
+    private static final class Filter {
+        final @NotNull String column;
+        final @NotNull Operator operator;
+        final @NotNull String value;
+        final double number;
+
+        Filter(@NotNull CompositeParameter filter) throws RequiredParameterException, InvalidParameterException {
+            column = Utils.getRequiredStringParameterValue(filter, PARAM_COLUMN).trim();
+            operator = getEnumValue(filter, PARAM_OPERATOR, Operator.class);
+            if (operator == Operator.min || operator == Operator.max) {
+                value = Utils.getRequiredStringParameterValue(filter, PARAM_VALUE).trim();
+                number = parseNumber(value);
+                if (Double.isNaN(number)) {
+                    throw new InvalidParameterException(filter.get(PARAM_VALUE), value);
+                }
+            } else {
+                String filterValue = Utils.getStringParameterValue(filter, PARAM_VALUE);
+                value = (filterValue == null) ? "" : filterValue;
+                number = Double.NaN;
+            }
+        }
+
+        boolean matches(@NotNull CharSequence cell) {
+            switch (operator) {
+            case equals:
+                return contentEquals(cell, value);
+            case contains:
+                return indexOf(cell, value) >= 0;
+            case min:
+                double min = parseNumber(cell);
+                return !Double.isNaN(min) && min >= number;
+            case max:
+                double max = parseNumber(cell);
+                return !Double.isNaN(max) && max <= number;
+            default:
+                throw new IllegalStateException("Unknown operator " + operator);
+            }
+        }
+    }
+
+    private final @Nullable List<String> columns;
+    private final @NotNull List<Filter> filters;
+    private final @Nullable String sortBy;
+    private final @NotNull Direction direction;
+
+    private CSVTableQuery(@Nullable List<String> columns, @NotNull List<Filter> filters, @Nullable String sortBy, @NotNull Direction direction) {
+        this.columns = columns;
+        this.filters = filters;
+        this.sortBy = sortBy;
+        this.direction = direction;
+    }
+
+    /**
+     * Query returning all rows and columns in file order.
+     */
+    static final CSVTableQuery ALL = new CSVTableQuery(null, new ArrayList<Filter>(), null, Direction.ascending);
+
+    static void addParameters(@NotNull StrictMap<String, RichPageParameter> parameters, @NotNull ParameterFactory factory) {
+        parameters.put(PARAM_COLUMNS, factory.string("Columns (comma separated, leave empty for all columns)").build());
+        CompositeParameter filter = factory.composite("Filter")
+                .add(PARAM_COLUMN, factory.string("Column").build())
+                .add(PARAM_OPERATOR, factory.string("Operator " + Arrays.asList(Operator.values())).value(Operator.equals.toString()).build())
+                .add(PARAM_VALUE, factory.string("Value").build())
+                .build();
+        parameters.put(PARAM_FILTERS, factory.multi("Filters", filter).build());
+        CompositeParameter sorting = factory.composite("Sorting")
+                .add(PARAM_SORT_BY, factory.string("Sort By (column, leave empty for file order)").build())
+                .add(PARAM_DIRECTION, factory.string("Direction " + Arrays.asList(Direction.values())).value(Direction.ascending.toString()).build())
+                .build();
+        parameters.put(PARAM_SORTING, sorting);
+    }
+
+    static @NotNull CSVTableQuery fromParameters(@NotNull RichPageWidgetRenderingContext context) throws RequiredParameterException, InvalidParameterException {
+        String columnsValue = Utils.getStringParameterValue(context, PARAM_COLUMNS);
+        List<String> columns = null;
+        if (columnsValue != null) {
+            columns = new ArrayList<>();
+            for (String column : columnsValue.split(",")) {
+                columns.add(column.trim());
+            }
+        }
+        List<Filter> filters = new ArrayList<>();
+        MultiParameter<CompositeParameter> filtersParameter = context.parameter(PARAM_FILTERS);
+        for (CompositeParameter filter : filtersParameter.get()) {
+            if (Utils.atLeastOneParameterIsSet(filter, PARAM_COLUMN, PARAM_VALUE)) {
+                filters.add(new Filter(filter));
+            }
+        }
+        CompositeParameter sorting = context.parameter(PARAM_SORTING);
+        String sortBy = Utils.getStringParameterValue(sorting, PARAM_SORT_BY);
+        Direction direction = getEnumValue(sorting, PARAM_DIRECTION, Direction.class);
+        return new CSVTableQuery(columns, filters, (sortBy == null) ? null : sortBy.trim(), direction);
+    }
+
+    private static @NotNull <E extends Enum<E>> E getEnumValue(@NotNull CompositeParameter parent, @NotNull String id, @NotNull Class<E> type)
+            throws RequiredParameterException, InvalidParameterException {
+        String value = Utils.getRequiredStringParameterValue(parent, id).trim();
+        try {
+            return Enum.valueOf(type, value);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidParameterException(parent.get(id), value);
+        }
+    }
+
+    static void addToKey(@NotNull CSVHtmlCache.Key key, @NotNull RichPageWidgetRenderingContext context) {
+        key.add(context, PARAM_COLUMNS);
+        key.add(context, PARAM_FILTERS, PARAM_COLUMN, PARAM_OPERATOR, PARAM_VALUE);
+        key.add(context, PARAM_SORTING, PARAM_SORT_BY, PARAM_DIRECTION);
+    }
+
+    boolean isSorted() {
+        return sortBy != null;
+    }
+
+    /**
+     * Resolves column names against given header.
+     *
+     * @throws IOException if some of the columns is not in the header
+     */
+    @NotNull
+    Bound bind(@NotNull String[] header) throws IOException {
+        int[] columnIndexes = null;
+        if (columns != null) {
+            columnIndexes = new int[columns.size()];
+            for (int i = 0; i < columnIndexes.length; i++) {
+                columnIndexes[i] = indexOf(header, columns.get(i));
+            }
+        }
+        int[] filterIndexes = new int[filters.size()];
+        for (int i = 0; i < filterIndexes.length; i++) {
+            filterIndexes[i] = indexOf(header, filters.get(i).column);
+        }
+        int sortIndex = (sortBy == null) ? -1 : indexOf(header, sortBy);
+        return new Bound(columnIndexes, filterIndexes, sortIndex);
+    }
+
+    private static int indexOf(@NotNull String[] header, @NotNull String column) throws IOException {
+        for (int i = 0; i < header.length; i++) {
+            if (header[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IOException("Column '" + column + "' not found");
+    }
+
+    /**
+     * Query with columns resolved to their indexes in the particular file.
+     */
+    final class Bound {
+        private final @Nullable int[] columnIndexes;
+        private final @NotNull int[] filterIndexes;
+        private final int sortIndex;
+
+        private Bound(@Nullable int[] columnIndexes, @NotNull int[] filterIndexes, int sortIndex) {
+            this.columnIndexes = columnIndexes;
+            this.filterIndexes = filterIndexes;
+            this.sortIndex = sortIndex;
+        }
+
+        /**
+         * @return index of the column to sort by or <code>-1</code> to keep the file order
+         */
+        int getSortIndex() {
+            return sortIndex;
+        }
+
+        boolean isDescending() {
+            return direction == Direction.descending;
+        }
+
+        int getFilterCount() {
+            return filterIndexes.length;
+        }
+
+        /**
+         * @return index of the column tested by given filter
+         */
+        int getFilterColumn(int filter) {
+            return filterIndexes[filter];
+        }
+
+        boolean matchesFilter(int filter, @NotNull CharSequence cell) {
+            return filters.get(filter).matches(cell);
+        }
+
+        boolean matches(@NotNull CSVTokenizer tokenizer) {
+            for (int i = 0; i < filterIndexes.length; i++) {
+                if (!filters.get(i).matches(tokenizer.getFieldChars(filterIndexes[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @NotNull
+        String[] project(@NotNull String[] row) {
+            if (columnIndexes == null) {
+                return row;
+            }
+            String[] result = new String[columnIndexes.length];
+            for (int i = 0; i < result.length; i++) {
+                int index = columnIndexes[i];
+                result[i] = (index < row.length) ? row[index] : "";
+            }
+            return result;
+        }
+
+        /**
+         * Returns shown fields of the current record (only these are converted to strings) or <code>null</code> if all fields are shown.
+         */
+        @Nullable
+        String[] project(@NotNull CSVTokenizer tokenizer) {
+            if (columnIndexes == null) {
+                return null;
+            }
+            String[] result = new String[columnIndexes.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = tokenizer.getFieldChars(columnIndexes[i]).toString();
+            }
+            return result;
+        }
+    }
+
+    private static boolean contentEquals(@NotNull CharSequence cell, @NotNull String value) {
+        if (cell.length() != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (cell.charAt(i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(@NotNull CharSequence cell, @NotNull String value) {
+        for (int start = 0; start <= cell.length() - value.length(); start++) {
+            int i = 0;
+            while (i < value.length() && cell.charAt(start + i) == value.charAt(i)) {
+                i++;
+            }
+            if (i == value.length()) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+    private static final long MAX_EXACT = 1L << 53;
+
+    /**
+     * Parses decimal number (optionally signed, with fraction and exponent, surrounded by whitespace) directly from the cell.
+     * Usual values with at most 15 digits are computed without creating any string, only other numbers go through {@link Double#parseDouble(String)}.
+     *
+     * @return value of the cell or {@link Double#NaN} if it is not a number
+     */
+    static double parseNumber(@NotNull CharSequence cell) {
+        int start = 0;
+        int end = cell.length();
+        while (start < end && Character.isWhitespace(cell.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(cell.charAt(end - 1))) {
+            end--;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (cell.charAt(i) == '-' || cell.charAt(i) == '+')) {
+            negative = cell.charAt(i) == '-';
+            i++;
+        }
+        long unscaled = 0;
+        int digits = 0;
+        int decimals = 0;
+        boolean exact = true;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            char c = cell.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (fraction) {
+                    decimals++;
+                }
+                if (unscaled < MAX_EXACT) {
+                    unscaled = unscaled * 10 + (c - '0');
+                } else {
+                    exact = false;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        if (i < end) {
+            // only an exponent may follow
+            if (cell.charAt(i) != 'e' && cell.charAt(i) != 'E') {
+                return Double.NaN;
+            }
+            i++;
+            if (i < end && (cell.charAt(i) == '-' || cell.charAt(i) == '+')) {
+                i++;
+            }
+            int exponentStart = i;
+            while (i < end && cell.charAt(i) >= '0' && cell.charAt(i) <= '9') {
+                i++;
+            }
+            if (i == exponentStart || i < end) {
+                return Double.NaN;
+            }
+            exact = false;
+        }
+        if (!exact || unscaled >= MAX_EXACT || decimals >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(cell.subSequence(start, end).toString());
+        }
+        // both operands are exact doubles, so the division is correctly rounded
+        double value = unscaled / POWERS_OF_TEN[decimals];
+        return negative ? -value : value;
+    }
+
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Single-pass CSV tokenizer following RFC 4180 quoting rules: a field starting with a double quote may contain separators,
+ * line breaks and escaped ({@code ""}) quotes. Lines may end with CRLF, LF or CR, empty lines are skipped.
+ * <p>
+ * Field contents of the current record are kept in a reusable char buffer and strings are created only by {@link #getField(int)},
+ * so callers that look just at some fields (or parse numbers via {@link #getBuffer()}) do not allocate per cell.
+ * Instances are not thread-safe.
+ */
+@SuppressWarnings("nls")
+final class CSVTokenizer implements Closeable {
+
+    private static final int EOF = -1;
+
+    private final @NotNull Reader reader;
+    private final @NotNull char[] separator;
+
+    private final char[] input = new char[8192];
+    private int inputPos;
+    private int inputLimit;
+
+    private char[] record = new char[256];
+    private int recordLength;
+
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private int fieldCount;
+
+    private final FieldView fieldView = new FieldView();
+
+    CSVTokenizer(@NotNull Reader reader, @NotNull String separator) {
+        this.reader = reader;
+        this.separator = separator.toCharArray();
+    }
+
+    /**
+     * Advances to the next non-empty record.
+     *
+     * @return <code>false</code> if there are no more records
+     */
+    boolean next() throws IOException {
+        int c = read();
+        while (c == '\n' || c == '\r') {
+            c = read();
+        }
+        if (c == EOF) {
+            fieldCount = 0;
+            return false;
+        }
+        recordLength = 0;
+        fieldCount = 0;
+        int fieldStart = 0;
+        int plainFrom = 0;
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == EOF) {
+                    break;
+                }
+                if (c == '"') {
+                    c = read();
+                    if (c == '"') {
+                        append('"');
+                    } else {
+                        quoted = false;
+                        plainFrom = recordLength;
+                        continue;
+                    }
+                } else {
+                    append((char) c);
+                }
+            } else {
+                if (c == EOF || c == '\n') {
+                    break;
+                }
+                if (c == '\r') {
+                    if (peek() == '\n') {
+                        read();
+                    }
+                    break;
+                }
+                if (c == '"' && recordLength == fieldStart) {
+                    quoted = true;
+                } else {
+                    append((char) c);
+                    if (endsWithSeparator(plainFrom)) {
+                        recordLength -= separator.length;
+                        addField(fieldStart, recordLength);
+                        fieldStart = recordLength;
+                        plainFrom = recordLength;
+                    }
+                }
+            }
+            c = read();
+        }
+        addField(fieldStart, recordLength);
+        return true;
+    }
+
+    /**
+     * Number of fields of the current record when trailing empty fields are ignored.
+     */
+    int getFieldCountWithoutTrailingEmpty() {
+        int count = fieldCount;
+        while (count > 0 && isFieldEmpty(count - 1)) {
+            count--;
+        }
+        return count;
+    }
+
+    /**
+     * Creates string with the content of given field of the current record.
+     */
+    @NotNull
+    String getField(int index) {
+        return new String(record, fieldStarts[index], fieldEnds[index] - fieldStarts[index]);
+    }
+
+    boolean isFieldEmpty(int index) {
+        return fieldStarts[index] == fieldEnds[index];
+    }
+
+    /**
+     * Buffer holding unescaped content of all fields of the current record, valid only until next call of {@link #next()}.
+     */
+    @NotNull
+    char[] getBuffer() {
+        return record;
+    }
+
+    /**
+     * @return number of digits after the decimal point in given field of the current record (<code>0</code> for integers),
+     *         the field is not validated here
+     */
+    int getDecimalPlaces(int index) {
+        for (int pos = fieldStarts[index]; pos < fieldEnds[index]; pos++) {
+            if (record[pos] == '.') {
+                return fieldEnds[index] - pos - 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Parses given field of the current record as a decimal number (optional sign, digits and optional decimal point followed
+     * by digits) without creating a string.
+     *
+     * @param decimals number of decimal places of the result, further digits are rounded half up
+     * @return the number multiplied by <code>10^decimals</code>
+     * @throws NumberFormatException if the field is not a number or the result does not fit into <code>long</code>
+     */
+    long getDecimalField(int index, int decimals) {
+        int pos = fieldStarts[index];
+        int end = fieldEnds[index];
+        boolean negative = false;
+        if (pos < end && (record[pos] == '-' || record[pos] == '+')) {
+            negative = record[pos] == '-';
+            pos++;
+        }
+        long value = 0;
+        // digits after the decimal point, negative before it
+        int places = -1;
+        boolean digits = false;
+        boolean roundUp = false;
+        for (; pos < end; pos++) {
+            char c = record[pos];
+            if (c == '.' && places < 0) {
+                places = 0;
+                continue;
+            }
+            int digit = c - '0';
+            if (digit < 0 || digit > 9) {
+                throw numberFormatException(index);
+            }
+            digits = true;
+            if (places >= decimals) {
+                roundUp |= places == decimals && digit >= 5;
+                places++;
+                continue;
+            }
+            value = append(value, digit, index);
+            if (places >= 0) {
+                places++;
+            }
+        }
+        if (!digits) {
+            throw numberFormatException(index);
+        }
+        for (int place = Math.max(0, places); place < decimals; place++) {
+            value = append(value, 0, index);
+        }
+        if (roundUp) {
+            if (value == Long.MAX_VALUE) {
+                throw numberFormatException(index);
+            }
+            value++;
+        }
+        return negative ? -value : value;
+    }
+
+    private long append(long value, int digit, int index) {
+        if (value > (Long.MAX_VALUE - digit) / 10) {
+            throw numberFormatException(index);
+        }
+        return value * 10 + digit;
+    }
+
+    private @NotNull NumberFormatException numberFormatException(int index) {
+        return new NumberFormatException("For input string: \"" + getField(index) + "\"");
+    }
+
+    /**
+     * Content of given field of the current record without creating a string, fields beyond the end of the record are empty.
+     * The returned sequence is reused, it is valid only until next call of this method or {@link #next()}.
+     */
+    @NotNull
+    CharSequence getFieldChars(int index) {
+        if (index < fieldCount) {
+            fieldView.set(fieldStarts[index], fieldEnds[index]);
+        } else {
+            fieldView.set(0, 0);
+        }
+        return fieldView;
+    }
+
+    private final class FieldView implements CharSequence {
+        private int start;
+        private int end;
+
+        void set(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return record[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new String(record, start + from, to - from);
+        }
+
+        @Override
+        public String toString() {
+            return new String(record, start, end - start);
+        }
+    }
+
+    int getFieldStart(int index) {
+        return fieldStarts[index];
+    }
+
+    int getFieldEnd(int index) {
+        return fieldEnds[index];
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private boolean endsWithSeparator(int plainFrom) {
+        int length = separator.length;
+        if (length == 0 || recordLength - length < plainFrom || record[recordLength - 1] != separator[length - 1]) {
+            return false;
+        }
+        for (int i = 0; i < length - 1; i++) {
+            if (record[recordLength - length + i] != separator[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void append(char c) {
+        if (recordLength == record.length) {
+            record = Arrays.copyOf(record, record.length * 2);
+        }
+        record[recordLength++] = c;
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        fieldCount++;
+    }
+
+    private int read() throws IOException {
+        if (inputPos == inputLimit && !fill()) {
+            return EOF;
+        }
+        return input[inputPos++];
+    }
+
+    private int peek() throws IOException {
+        if (inputPos == inputLimit && !fill()) {
+            return EOF;
+        }
+        return input[inputPos];
+    }
+
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = reader.read(input, 0, input.length);
+        } while (read == 0);
+        if (read < 0) {
+            return false;
+        }
+        inputPos = 0;
+        inputLimit = read;
+        return true;
+    }
+
+}
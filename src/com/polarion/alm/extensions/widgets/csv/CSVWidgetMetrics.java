@@ -0,0 +1,457 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.polarion.alm.extensions.widgets.common.Utils;
+import com.polarion.alm.extensions.widgets.common.Utils.LoadedContent;
+import com.polarion.alm.extensions.widgets.common.Utils.ResourceInfo;
+import com.polarion.alm.shared.api.model.rp.widget.RichPageWidgetRenderingContext;
+import com.polarion.alm.shared.api.utils.html.HtmlFragmentBuilder;
+import com.polarion.platform.core.PlatformContext;
+import com.polarion.platform.security.ISecurityService;
+
+/**
+ * Process-wide counters and timers of CSV widgets, registered as MBean <code>com.polarion.alm.extensions.widgets:type=CSVWidgets</code>.
+ * <p>
+ * Every render is split into phases (see {@link Phase}) measured by a {@link Timer}. When enabled, the phases of the current render
+ * are also shown to administrators in a footer below the widget.
+ */
+@SuppressWarnings("nls")
+final class CSVWidgetMetrics implements CSVWidgetMetricsMBean {
+
+    static final String OBJECT_NAME = "com.polarion.alm.extensions.widgets:type=CSVWidgets";
+    static final String PROPERTY_DEBUG_FOOTER = "com.polarion.alm.extensions.widgets.csv.debugFooter";
+    private static final String ADMIN_ROLE = "admin";
+    private static final int MAX_DATA_SOURCES = 1000;
+    private static final int SLOWEST_DATA_SOURCES = 10;
+
+    static final CSVWidgetMetrics INSTANCE = register(new CSVWidgetMetrics(Boolean.getBoolean(PROPERTY_DEBUG_FOOTER)));
+
+    enum Phase {
+        /**
+         * Reading and parsing of the data sources (or getting them from the cache), for tables streamed from the repository
+         * only the time spent reading the content.
+         */
+        load,
+        /**
+         * Filtering, sorting and aggregation of the values, statistics of the texts.
+         */
+        aggregate,
+        /**
+         * Building of the HTML (and chart definition).
+         */
+        html;
+    }
+
+    /**
+     * Measures phases of one render, every phase lasts from the end of the previous one.
+     */
+    static final class Timer {
+        private final long start = System.nanoTime();
+        private final @NotNull long[] phases = new long[Phase.values().length];
+        private long phaseStart = start;
+
+        void end(@NotNull Phase phase) {
+            long now = System.nanoTime();
+            phases[phase.ordinal()] += now - phaseStart;
+            phaseStart = now;
+        }
+
+        /**
+         * Moves given time already measured as part of one phase to another phase (for phases which interleave).
+         */
+        void move(long nanos, @NotNull Phase from, @NotNull Phase to) {
+            long moved = Math.min(nanos, phases[from.ordinal()]);
+            phases[from.ordinal()] -= moved;
+            phases[to.ordinal()] += moved;
+        }
+
+        long getTotalNanos() {
+            return System.nanoTime() - start;
+        }
+
+        @NotNull
+        String describe() {
+            StringBuilder result = new StringBuilder("Rendered in ").append(millis(getTotalNanos())).append(" ms (");
+            for (Phase phase : Phase.values()) {
+                result.append(phase).append(' ').append(millis(phases[phase.ordinal()])).append(" ms");
+                result.append((phase.ordinal() < phases.length - 1) ? ", " : ")");
+            }
+            return result.toString();
+        }
+    }
+
+    private final boolean debugFooter;
+    private final AtomicLong renders = new AtomicLong();
+    private final AtomicLong renderNanos = new AtomicLong();
+    private final AtomicLong[] phaseNanos = new AtomicLong[Phase.values().length];
+    private final AtomicLong parses = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+    private final AtomicLong dateParseNanos = new AtomicLong();
+    private final AtomicLong parsedRows = new AtomicLong();
+    private final AtomicLong loadedBytes = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    private final AtomicLong rowsFilteredByDate = new AtomicLong();
+    private final AtomicLong htmlCacheHits = new AtomicLong();
+    private final AtomicLong htmlCacheMisses = new AtomicLong();
+    private final AtomicLong precomputed = new AtomicLong();
+    private final AtomicLong precomputeFailures = new AtomicLong();
+    /**
+     * Total render time by main data location.
+     */
+    private final ConcurrentMap<String, AtomicLong> dataSourceNanos = new ConcurrentHashMap<>();
+
+    CSVWidgetMetrics(boolean debugFooter) {
+        this.debugFooter = debugFooter;
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new AtomicLong();
+        }
+    }
+
+    private static @NotNull CSVWidgetMetrics register(@NotNull CSVWidgetMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // registered by previously loaded instance of the bundle
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(metrics, CSVWidgetMetricsMBean.class), name);
+        } catch (JMException | RuntimeException e) {
+            // metrics are still collected, they are just not visible via JMX
+        }
+        return metrics;
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Records finished render (also when it was served from the HTML cache).
+     *
+     * @param dataLocation main data location of the widget (if known)
+     */
+    void rendered(@NotNull Timer timer, @Nullable String dataLocation) {
+        long nanos = timer.getTotalNanos();
+        renders.incrementAndGet();
+        renderNanos.addAndGet(nanos);
+        for (Phase phase : Phase.values()) {
+            phaseNanos[phase.ordinal()].addAndGet(timer.phases[phase.ordinal()]);
+        }
+        if (dataLocation != null) {
+            AtomicLong total = dataSourceNanos.get(dataLocation);
+            if (total == null) {
+                if (dataSourceNanos.size() >= MAX_DATA_SOURCES) {
+                    dataSourceNanos.clear();
+                }
+                dataSourceNanos.putIfAbsent(dataLocation, new AtomicLong());
+                total = dataSourceNanos.get(dataLocation);
+            }
+            if (total != null) {
+                total.addAndGet(nanos);
+            }
+        }
+    }
+
+    /**
+     * @param nanos time of parsing given content (returned by {@link #load(ResourceInfo)}) including reading it, time spent
+     *            reading is not counted as parse time
+     */
+    void parsed(long nanos, @NotNull LoadedContent content) {
+        parses.incrementAndGet();
+        parseNanos.addAndGet(Math.max(0, nanos - getReadNanos(content)));
+    }
+
+    void addDateParseNanos(long nanos) {
+        dateParseNanos.addAndGet(nanos);
+    }
+
+    void addParsedRows(long rows) {
+        parsedRows.addAndGet(rows);
+    }
+
+    void addRowsFilteredByDate(long rows) {
+        rowsFilteredByDate.addAndGet(rows);
+    }
+
+    void htmlCacheHit() {
+        htmlCacheHits.incrementAndGet();
+    }
+
+    void htmlCacheMiss() {
+        htmlCacheMisses.incrementAndGet();
+    }
+
+    void precomputed() {
+        precomputed.incrementAndGet();
+    }
+
+    void precomputeFailed() {
+        precomputeFailures.incrementAndGet();
+    }
+
+    /**
+     * Content stream counting read bytes and time spent reading them (i.e. waiting for the repository).
+     */
+    private final class TrackedStream extends FilterInputStream {
+        long nanos;
+
+        TrackedStream(@NotNull InputStream in, long openNanos) {
+            super(in);
+            nanos = openNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            count(start, (b >= 0) ? 1 : 0);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int read = super.read(b, off, len);
+            count(start, Math.max(0, read));
+            return read;
+        }
+
+        private void count(long start, int bytes) {
+            long spent = System.nanoTime() - start;
+            nanos += spent;
+            readNanos.addAndGet(spent);
+            loadedBytes.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Opens content of given file in the repository, read bytes and time spent opening and reading it are counted.
+     */
+    @NotNull
+    LoadedContent load(@NotNull ResourceInfo info) {
+        long start = System.nanoTime();
+        LoadedContent content = Utils.loadContent(info);
+        long nanos = System.nanoTime() - start;
+        readNanos.addAndGet(nanos);
+        return new LoadedContent(new TrackedStream(content.content, nanos), content.timestamp);
+    }
+
+    /**
+     * @return time spent so far opening and reading given content returned by {@link #load(ResourceInfo)}
+     */
+    static long getReadNanos(@NotNull LoadedContent content) {
+        return (content.content instanceof TrackedStream) ? ((TrackedStream) content.content).nanos : 0;
+    }
+
+    /**
+     * @return footer with phases of given render if it is enabled and the current user is an administrator, empty string otherwise
+     */
+    @NotNull
+    String renderFooter(@NotNull RichPageWidgetRenderingContext context, @NotNull Timer timer) {
+        if (!debugFooter || !isAdmin()) {
+            return "";
+        }
+        HtmlFragmentBuilder builder = context.createHtmlFragmentBuilder();
+        builder.tag().div().append().text(timer.describe());
+        return builder.toString();
+    }
+
+    private static boolean isAdmin() {
+        ISecurityService securityService = PlatformContext.getPlatform().lookupService(ISecurityService.class);
+        String user = securityService.getCurrentUser();
+        return user != null && securityService.getRolesForUser(user).contains(ADMIN_ROLE);
+    }
+
+    @Override
+    public long getRenders() {
+        return renders.get();
+    }
+
+    @Override
+    public long getRenderMillis() {
+        return millis(renderNanos.get());
+    }
+
+    @Override
+    public long getLoadMillis() {
+        return millis(phaseNanos[Phase.load.ordinal()].get());
+    }
+
+    @Override
+    public long getAggregateMillis() {
+        return millis(phaseNanos[Phase.aggregate.ordinal()].get());
+    }
+
+    @Override
+    public long getHtmlMillis() {
+        return millis(phaseNanos[Phase.html.ordinal()].get());
+    }
+
+    @Override
+    public long getParses() {
+        return parses.get();
+    }
+
+    @Override
+    public long getParseMillis() {
+        return millis(parseNanos.get());
+    }
+
+    @Override
+    public long getDateParseMillis() {
+        return millis(dateParseNanos.get());
+    }
+
+    @Override
+    public long getReadMillis() {
+        return millis(readNanos.get());
+    }
+
+    @Override
+    public long getParsedRows() {
+        return parsedRows.get();
+    }
+
+    @Override
+    public long getLoadedBytes() {
+        return loadedBytes.get();
+    }
+
+    @Override
+    public long getRowsFilteredByDate() {
+        return rowsFilteredByDate.get();
+    }
+
+    @Override
+    public long getHtmlCacheHits() {
+        return htmlCacheHits.get();
+    }
+
+    @Override
+    public long getHtmlCacheMisses() {
+        return htmlCacheMisses.get();
+    }
+
+    @Override
+    public long getPrecomputed() {
+        return precomputed.get();
+    }
+
+    @Override
+    public long getPrecomputeFailures() {
+        return precomputeFailures.get();
+    }
+
+    @Override
+    public long getDataCacheHits() {
+        return CSVDataCache.INSTANCE.getHits();
+    }
+
+    @Override
+    public long getDataCacheMisses() {
+        return CSVDataCache.INSTANCE.getMisses();
+    }
+
+    @Override
+    public long getDataCacheEvictions() {
+        return CSVDataCache.INSTANCE.getEvictions();
+    }
+
+    @Override
+    public long getDataCacheAppends() {
+        return CSVDataCache.INSTANCE.getAppends();
+    }
+
+    @Override
+    public long getDataCacheCoalesced() {
+        return CSVDataCache.INSTANCE.getCoalesced();
+    }
+
+    @Override
+    public long getDataCacheBytes() {
+        return CSVDataCache.INSTANCE.getCurrentBytes();
+    }
+
+    @Override
+    public int getDataCacheEntries() {
+        return CSVDataCache.INSTANCE.getEntryCount();
+    }
+
+    @Override
+    public String[] getSlowestDataSources() {
+        List<Map.Entry<String, AtomicLong>> entries = new ArrayList<>(dataSourceNanos.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+            @Override
+            public int compare(Map.Entry<String, AtomicLong> entry1, Map.Entry<String, AtomicLong> entry2) {
+                return Long.compare(entry2.getValue().get(), entry1.getValue().get());
+            }
+        });
+        String[] result = new String[Math.min(SLOWEST_DATA_SOURCES, entries.size())];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = entries.get(i).getKey() + ": " + millis(entries.get(i).getValue().get()) + " ms";
+        }
+        return result;
+    }
+
+    /**
+     * Resets counters of this class, statistics of the data cache are kept.
+     */
+    @Override
+    public void reset() {
+        renders.set(0);
+        renderNanos.set(0);
+        for (AtomicLong phase : phaseNanos) {
+            phase.set(0);
+        }
+        parses.set(0);
+        parseNanos.set(0);
+        dateParseNanos.set(0);
+        parsedRows.set(0);
+        loadedBytes.set(0);
+        readNanos.set(0);
+        rowsFilteredByDate.set(0);
+        htmlCacheHits.set(0);
+        htmlCacheMisses.set(0);
+        precomputed.set(0);
+        precomputeFailures.set(0);
+        dataSourceNanos.clear();
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+/**
+ * Management interface of {@link CSVWidgetMetrics}, times are totals in milliseconds since the start or the last reset.
+ */
+public interface CSVWidgetMetricsMBean {
+
+    long getRenders();
+
+    long getRenderMillis();
+
+    long getLoadMillis();
+
+    long getAggregateMillis();
+
+    long getHtmlMillis();
+
+    long getParses();
+
+    /**
+     * Parsing of data sources, without reading them from the repository.
+     */
+    long getParseMillis();
+
+    /**
+     * Parsing of dates (part of {@link #getParseMillis()}).
+     */
+    long getDateParseMillis();
+
+    long getParsedRows();
+
+    long getLoadedBytes();
+
+    /**
+     * Opening and reading of data sources in the repository.
+     */
+    long getReadMillis();
+
+    long getRowsFilteredByDate();
+
+    long getHtmlCacheHits();
+
+    long getHtmlCacheMisses();
+
+    /**
+     * Revisions of data sources parsed in advance by {@link CSVPrecomputeScheduler}.
+     */
+    long getPrecomputed();
+
+    long getPrecomputeFailures();
+
+    long getDataCacheHits();
+
+    long getDataCacheMisses();
+
+    long getDataCacheEvictions();
+
+    long getDataCacheAppends();
+
+    long getDataCacheCoalesced();
+
+    long getDataCacheBytes();
+
+    int getDataCacheEntries();
+
+    /**
+     * Main data sources of rendered widgets with the longest total render time.
+     */
+    String[] getSlowestDataSources();
+
+    void reset();
+
+}
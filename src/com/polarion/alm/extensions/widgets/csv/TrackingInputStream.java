@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Polarion AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.polarion.alm.extensions.widgets.csv;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Counts and checksums bytes read through it, so it can be later verified that a new revision of a file only appended content.
+ */
+final class TrackingInputStream extends FilterInputStream {
+
+    private final CRC32 checksum = new CRC32();
+    private long count;
+    private int lastByte = -1;
+
+    TrackingInputStream(@NotNull InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            checksum.update(b);
+            count++;
+            lastByte = b;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            checksum.update(b, off, read);
+            count += read;
+            lastByte = b[off + read - 1] & 0xFF;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes must be checksummed too
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Reads exactly given number of bytes (which are only counted and checksummed).
+     *
+     * @return <code>false</code> if the stream ended earlier
+     */
+    boolean consume(long length) throws IOException {
+        return skip(length) == length;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getChecksum() {
+        return checksum.getValue();
+    }
+
+    boolean endsWithLineBreak() {
+        return lastByte == '\n' || lastByte == '\r';
+    }
+
+}